@@ -84,6 +84,10 @@ public class AutoGrader {
 	}	
     }
 
+    boolean hasArgument(String key) {
+	return testArgs.containsKey(key);
+    }
+
     String getStringArgument(String key) {
 	String value = (String) testArgs.get(key);
 	Lib.assertTrue(value != null,
@@ -165,6 +169,8 @@ public class AutoGrader {
      * @param	idleThread	the idle thread.
      */
     public void setIdleThread(KThread idleThread) {
+	if (privilege.stats.threadMetrics != null)
+	    privilege.stats.threadMetrics.setIdleThread(idleThread);
     }
 
     /**
@@ -175,6 +181,8 @@ public class AutoGrader {
      * @param	thread	the thread that has been added to the ready set.
      */
     public void readyThread(KThread thread) {
+	if (privilege.stats.threadMetrics != null)
+	    privilege.stats.threadMetrics.readyThread(thread);
     }
 
     /**
@@ -187,6 +195,9 @@ public class AutoGrader {
     public void runningThread(KThread thread) {
 	privilege.tcb.associateThread(thread);
 	currentThread = thread;
+
+	if (privilege.stats.threadMetrics != null)
+	    privilege.stats.threadMetrics.runningThread(thread);
     }
 
     /**
@@ -196,6 +207,20 @@ public class AutoGrader {
      */
     public void finishingCurrentThread() {
 	privilege.tcb.authorizeDestroy(currentThread);
+
+	if (privilege.stats.threadMetrics != null)
+	    privilege.stats.threadMetrics.finishingThread(currentThread);
+    }
+
+    /**
+     * Notify the autograder that the specified thread missed a deadline. A
+     * real-time scheduler must call this method once for each deadline a
+     * thread's job was not done by.
+     *
+     * @param	thread	the thread that missed a deadline.
+     */
+    public void missedDeadline(KThread thread) {
+	privilege.stats.numDeadlineMisses++;
     }
 
     /**
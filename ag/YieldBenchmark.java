@@ -0,0 +1,70 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+
+/**
+ * An autograder that measures how long a context switch takes in host time,
+ * instead of running the kernel. Two threads call <tt>KThread.yield()</tt> in
+ * turn, so with an empty ready queue every yield is a switch to the other
+ * thread. Run it with <tt>-- nachos.ag.YieldBenchmark</tt>. The test arguments
+ * <tt>rounds</tt> and <tt>trials</tt> set the number of yields each thread
+ * makes per trial, and the number of trials.
+ */
+public class YieldBenchmark extends AutoGrader {
+    void run() {
+	int rounds = hasArgument("rounds") ? getIntegerArgument("rounds")
+	    : 100000;
+	int trials = hasArgument("trials") ? getIntegerArgument("trials") : 5;
+
+	Lib.assertTrue(rounds > 0 && trials > 0);
+
+	System.out.println("yield benchmark: " + trials + " trials of "
+			   + rounds + " round trips");
+
+	// warm up the JIT before timing anything
+	pingPong(rounds);
+
+	long[] results = new long[trials];
+	for (int i=0; i<trials; i++) {
+	    results[i] = pingPong(rounds);
+	    System.out.println("  trial " + (i+1) + ": " + results[i]
+			       + " ns per switch");
+	}
+
+	Arrays.sort(results);
+	System.out.println("  best " + results[0] + " ns, median "
+			   + results[trials/2] + " ns per switch");
+
+	kernel.terminate();
+    }
+
+    /**
+     * Yield back and forth with another thread.
+     *
+     * @param	rounds	the number of times each thread yields.
+     * @return	the average time per context switch, in nanoseconds.
+     */
+    private long pingPong(final int rounds) {
+	KThread partner = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<rounds; i++)
+			KThread.yield();
+		}
+	    });
+	partner.setName("yield partner");
+
+	long start = System.nanoTime();
+
+	partner.fork();
+	for (int i=0; i<rounds; i++)
+	    KThread.yield();
+	partner.join();
+
+	return (System.nanoTime() - start) / (2L * rounds);
+    }
+}
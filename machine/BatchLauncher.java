@@ -0,0 +1,427 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs many independent Nachos simulations in one JVM, several at a time, so
+ * that a regression run or parameter sweep does not pay for a JVM start per
+ * simulation.
+ *
+ * <p>
+ * Nachos keeps the state of the machine and the kernel in static fields, so
+ * each simulation gets its own class loader, which loads every
+ * <tt>nachos</tt> class again except this one. Each simulation thus has its
+ * own <tt>Machine</tt>, <tt>Config</tt>, <tt>KThread</tt>, <tt>TCB</tt> and
+ * random number generator, and runs the same as it would in a JVM of its own.
+ * What the simulations still share is redirected per simulation by this
+ * class: <tt>System.out</tt> and <tt>System.err</tt> go to the simulation's
+ * output file, and <tt>System.in</tt> reads its input file. When a simulation
+ * exits, its threads end instead of the JVM.
+ *
+ * <p>
+ * Usage: <tt>java nachos.machine.BatchLauncher [-j <i>threads</i>]
+ * [-o <i>directory</i>] [-t <i>seconds</i>] <i>runs-file</i></tt>. Each
+ * line of the runs file holds the command line of one simulation, optionally
+ * preceded by <tt>&lt;<i>file</i></tt> to take console input from a file.
+ * Blank lines and lines starting with <tt>#</tt> are skipped. The output of
+ * the simulation on line <i>n</i> is written to <tt>run<i>n</i>.txt</tt>.
+ *
+ * <p>
+ * The simulations run without <tt>NachosSecurityManager</tt>, since only one
+ * security manager can be installed in a JVM. They share the working
+ * directory, so they should not write to the same files, and they can not use
+ * the network link, whose ports would collide. A simulation with a bad
+ * command line or configuration file still exits the JVM.
+ */
+public final class BatchLauncher {
+    /**
+     * Run the simulations listed in a file.
+     *
+     * @param	args	the command line arguments.
+     */
+    public static void main(String[] args) throws Exception {
+	int numThreads = Runtime.getRuntime().availableProcessors();
+	File outputDirectory = new File(".");
+	long timeout = 0;
+	String runsFileName = null;
+
+	for (int i=0; i<args.length; i++) {
+	    if (args[i].equals("-j") && i+1 < args.length)
+		numThreads = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-o") && i+1 < args.length)
+		outputDirectory = new File(args[++i]);
+	    else if (args[i].equals("-t") && i+1 < args.length)
+		timeout = Long.parseLong(args[++i]) * 1000;
+	    else if (runsFileName == null && !args[i].startsWith("-"))
+		runsFileName = args[i];
+	    else
+		usage();
+	}
+	if (runsFileName == null || numThreads < 1)
+	    usage();
+
+	final ArrayList<Run> runs = readRuns(new File(runsFileName),
+					     outputDirectory, timeout);
+	final URL[] classPath = getClassPath();
+
+	PrintStream out = System.out;
+	System.setOut(new PrintStream(new RunOutputStream(System.out)));
+	System.setErr(new PrintStream(new RunOutputStream(System.err)));
+	System.setIn(new RunInputStream(System.in));
+
+	long startTime = System.currentTimeMillis();
+
+	ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+	for (int i=0; i<runs.size(); i++) {
+	    final Run run = runs.get(i);
+	    executor.execute(new Runnable() {
+		public void run() {
+		    run.execute(classPath);
+		}
+	    });
+	}
+	executor.shutdown();
+
+	int numFailed = 0;
+	for (int i=0; i<runs.size(); i++) {
+	    Run run = runs.get(i);
+	    run.awaitFinished();
+	    out.println(run.summary());
+
+	    if (run.exitStatus != 0)
+		numFailed++;
+	}
+
+	out.println(runs.size() + " runs, " + numFailed + " failed, "
+		    + (System.currentTimeMillis() - startTime) + " ms");
+	out.flush();
+
+	// abandoned runs may have left threads behind
+	System.exit(numFailed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Test whether the current thread belongs to a simulation started by
+     * a batch launcher.
+     *
+     * @return	<tt>true</tt> if the current thread is part of a batch run.
+     */
+    public static boolean isBatchRun() {
+	return currentRun.get() != null;
+    }
+
+    /**
+     * Record that the simulation the current thread belongs to is exiting.
+     * Only the simulation exits, not the JVM; the caller must stop its
+     * threads.
+     *
+     * @param	exitStatus	the exit status of the simulation.
+     */
+    public static void exitRun(int exitStatus) {
+	Run run = currentRun.get();
+	Lib.assertTrue(run != null);
+
+	run.exited(exitStatus);
+    }
+
+    private static void usage() {
+	System.err.println("usage: java nachos.machine.BatchLauncher "
+			   + "[-j threads] [-o directory] [-t seconds] "
+			   + "runs-file");
+	System.exit(1);
+    }
+
+    private static ArrayList<Run> readRuns(File runsFile,
+					   File outputDirectory,
+					   long timeout) throws IOException {
+	ArrayList<Run> runs = new ArrayList<Run>();
+
+	BufferedReader reader = new BufferedReader(new FileReader(runsFile));
+	int lineNumber = 0;
+	String line;
+	while ((line = reader.readLine()) != null) {
+	    lineNumber++;
+
+	    StringTokenizer st = new StringTokenizer(line);
+	    if (!st.hasMoreTokens())
+		continue;
+
+	    ArrayList<String> words = new ArrayList<String>();
+	    while (st.hasMoreTokens())
+		words.add(st.nextToken());
+
+	    if (words.get(0).startsWith("#"))
+		continue;
+
+	    File inputFile = null;
+	    if (words.get(0).startsWith("<")) {
+		inputFile = new File(words.remove(0).substring(1));
+	    }
+
+	    runs.add(new Run(lineNumber, words.toArray(new String[0]),
+			     inputFile,
+			     new File(outputDirectory, "run" + lineNumber + ".txt"),
+			     timeout));
+	}
+	reader.close();
+
+	return runs;
+    }
+
+    private static URL[] getClassPath() throws IOException {
+	StringTokenizer st =
+	    new StringTokenizer(System.getProperty("java.class.path"),
+				File.pathSeparator);
+
+	ArrayList<URL> urls = new ArrayList<URL>();
+	while (st.hasMoreTokens())
+	    urls.add(new File(st.nextToken()).toURI().toURL());
+
+	return urls.toArray(new URL[0]);
+    }
+
+    /**
+     * One simulation.
+     */
+    private static class Run {
+	Run(int lineNumber, String[] args, File inputFile, File outputFile,
+	    long timeout) {
+	    this.lineNumber = lineNumber;
+	    this.args = args;
+	    this.inputFile = inputFile;
+	    this.outputFile = outputFile;
+	    this.timeout = timeout;
+	}
+
+	/**
+	 * Run the simulation in a thread of its own, which becomes the
+	 * thread of its first TCB, and wait for it to exit. The first TCB can
+	 * be destroyed long before the simulation exits, so it is the exit
+	 * that is waited for, not the thread.
+	 */
+	void execute(final URL[] classPath) {
+	    long startTime = System.currentTimeMillis();
+
+	    try {
+		in = (inputFile != null) ? (InputStream)
+		    new FileInputStream(inputFile) :
+		    new ByteArrayInputStream(new byte[0]);
+		out = new BufferedOutputStream(new FileOutputStream(outputFile));
+	    }
+	    catch (IOException e) {
+		message = e.toString();
+		finish(startTime);
+		return;
+	    }
+
+	    Thread thread = new Thread(new Runnable() {
+		public void run() {
+		    currentRun.set(Run.this);
+		    runMachine(classPath);
+		}
+	    }, "nachos run " + lineNumber);
+	    // a run that never exits must not keep the JVM alive
+	    thread.setDaemon(true);
+	    thread.start();
+
+	    synchronized (this) {
+		long deadline = startTime + timeout;
+		while (!exited) {
+		    long remaining = deadline - System.currentTimeMillis();
+		    if (timeout != 0 && remaining <= 0) {
+			exitStatus = 1;
+			message = "timed out";
+			break;
+		    }
+
+		    try {
+			wait(timeout != 0 ? remaining : 0);
+		    }
+		    catch (InterruptedException e) {
+		    }
+		}
+	    }
+
+	    try {
+		out.close();
+		in.close();
+	    }
+	    catch (IOException e) {
+	    }
+
+	    finish(startTime);
+	}
+
+	private void runMachine(URL[] classPath) {
+	    RunClassLoader loader = new RunClassLoader(classPath);
+	    try {
+		Method main = loader.loadClass(Machine.class.getName())
+		    .getMethod("main", String[].class);
+		main.invoke(null, new Object[] { args });
+	    }
+	    catch (InvocationTargetException e) {
+		// a run ends its first thread with ThreadDeath when it exits
+		if (!(e.getCause() instanceof ThreadDeath)) {
+		    e.getCause().printStackTrace();
+		    exited(1);
+		}
+	    }
+	    catch (Exception e) {
+		e.printStackTrace();
+		exited(1);
+	    }
+	}
+
+	synchronized void exited(int exitStatus) {
+	    if (!exited) {
+		exited = true;
+		this.exitStatus = exitStatus;
+		notifyAll();
+	    }
+	}
+
+	private synchronized void finish(long startTime) {
+	    time = System.currentTimeMillis() - startTime;
+	    finished = true;
+	    notifyAll();
+	}
+
+	synchronized void awaitFinished() throws InterruptedException {
+	    while (!finished)
+		wait();
+	}
+
+	String summary() {
+	    StringBuffer buf = new StringBuffer();
+	    buf.append("run " + lineNumber + ": exit " + exitStatus + ", "
+		       + time + " ms");
+	    if (message != null)
+		buf.append(", " + message);
+	    return buf.toString();
+	}
+
+	int lineNumber;
+	String[] args;
+	File inputFile, outputFile;
+	long timeout;
+
+	InputStream in;
+	OutputStream out;
+
+	boolean exited = false, finished = false;
+	int exitStatus = 0;
+	long time;
+	String message = null;
+    }
+
+    /**
+     * Loads every <tt>nachos</tt> class itself, except this launcher, whose
+     * static state the simulations share.
+     */
+    private static class RunClassLoader extends URLClassLoader {
+	RunClassLoader(URL[] classPath) {
+	    super(classPath, BatchLauncher.class.getClassLoader());
+	}
+
+	protected Class<?> loadClass(String name, boolean resolve)
+	    throws ClassNotFoundException {
+	    if (!name.startsWith("nachos.") ||
+		name.startsWith(BatchLauncher.class.getName()))
+		return super.loadClass(name, resolve);
+
+	    synchronized (getClassLoadingLock(name)) {
+		Class<?> cls = findLoadedClass(name);
+		if (cls == null)
+		    cls = findClass(name);
+		if (resolve)
+		    resolveClass(cls);
+		return cls;
+	    }
+	}
+    }
+
+    /**
+     * Sends output to the file of the run the current thread belongs to, or
+     * to the original stream if it belongs to none.
+     */
+    private static class RunOutputStream extends OutputStream {
+	RunOutputStream(OutputStream standard) {
+	    this.standard = standard;
+	}
+
+	private OutputStream target() {
+	    Run run = currentRun.get();
+	    return (run != null) ? run.out : standard;
+	}
+
+	public void write(int b) throws IOException {
+	    target().write(b);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+	    target().write(b, off, len);
+	}
+
+	public void flush() throws IOException {
+	    target().flush();
+	}
+
+	private OutputStream standard;
+    }
+
+    /**
+     * Reads the input file of the run the current thread belongs to, or the
+     * original stream if it belongs to none.
+     */
+    private static class RunInputStream extends InputStream {
+	RunInputStream(InputStream standard) {
+	    this.standard = standard;
+	}
+
+	private InputStream source() {
+	    Run run = currentRun.get();
+	    return (run != null) ? run.in : standard;
+	}
+
+	public int read() throws IOException {
+	    return source().read();
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+	    return source().read(b, off, len);
+	}
+
+	public int available() throws IOException {
+	    return source().available();
+	}
+
+	private InputStream standard;
+    }
+
+    /**
+     * The run each thread belongs to. Every thread a simulation creates,
+     * virtual threads included, inherits it.
+     */
+    private static InheritableThreadLocal<Run> currentRun =
+	new InheritableThreadLocal<Run>();
+}
@@ -4,9 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.List;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +54,10 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new TimingWheel();
+
+	fastForward = Config.getBoolean("Interrupt.fastForward", false) &&
+	    !traceInterrupts;
     }
 
     /**
@@ -120,32 +124,97 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Wait for the next interrupt. This is called by the idle thread before
+     * each time it yields. If <tt>Interrupt.fastForward</tt> is set, the
+     * simulated time is advanced to just before the kernel tick at which the
+     * next interrupt falls due, so that the idle thread's next time advance
+     * invokes its handler. The skipped time is charged to the kernel, and
+     * every handler runs at the same time as if the idle thread had spun
+     * until then.
+     *
+     * <p>
+     * Only interrupt handlers can make a thread ready while the idle thread
+     * runs, so time is only skipped if no handler has run since the last
+     * call. Otherwise a thread may be waiting to run, and the idle thread
+     * must yield to it first.
+     *
+     * <p>
+     * Interrupts must be enabled.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled());
+
+	if (!fastForward)
+	    return;
+
+	if (numHandlersInvoked != numHandlersAtIdle) {
+	    numHandlersAtIdle = numHandlersInvoked;
+	    return;
+	}
+
+	Stats stats = privilege.stats;
+	long next = pending.nextTime();
+	if (next == Long.MAX_VALUE)
+	    return;
+
+	// the number of kernel ticks until the interrupt is due, less the one
+	// the idle thread's next time advance will take
+	long numTicks = (next - stats.totalTicks + Stats.KernelTick - 1)
+	    / Stats.KernelTick - 1;
+	if (numTicks <= 0)
+	    return;
+
+	stats.kernelTicks += numTicks * Stats.KernelTick;
+	stats.totalTicks += numTicks * Stats.KernelTick;
+	stats.idleTicksSkipped += numTicks * Stats.KernelTick;
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (traceInterrupts)
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	pending.schedule(time, type, handler);
+    }
+
+    private void schedule(TimingWheel.Event event, long when) {
+	Lib.assertTrue(when>0);
+
+	long time = privilege.stats.totalTicks + when;
+
+	if (traceInterrupts)
+	    System.out.println("Scheduling the " + event.type +
+			       " interrupt handler at time = " + time);
+
+	if (event.isScheduled())
+	    pending.cancel(event);
+	pending.schedule(event, time);
     }
 
     private void tick(boolean inKernelMode) {
+	tick(inKernelMode, 1);
+    }
+
+    private void tick(boolean inKernelMode, int numTicks) {
 	Stats stats = privilege.stats;
 
+	Lib.assertTrue(numTicks > 0);
+
 	if (inKernelMode) {
-	    stats.kernelTicks += Stats.KernelTick;
-	    stats.totalTicks += Stats.KernelTick;
+	    stats.kernelTicks += (long) Stats.KernelTick * numTicks;
+	    stats.totalTicks += (long) Stats.KernelTick * numTicks;
 	}
 	else {
-	    stats.userTicks += Stats.UserTick;
-	    stats.totalTicks += Stats.UserTick;
+	    stats.userTicks += (long) Stats.UserTick * numTicks;
+	    stats.totalTicks += (long) Stats.UserTick * numTicks;
 	}
 
-	if (Lib.test(dbgInt))
+	if (traceInterrupts)
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
 	enabled = false;
@@ -158,42 +227,120 @@ public final class Interrupt {
 
 	Lib.assertTrue(disabled());
 
-	if (Lib.test(dbgInt))
+	if (traceInterrupts)
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.nextTime() > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
-	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	if (traceInterrupts)
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 
-	    Lib.assertTrue(next.time <= time);
+	TimingWheel.Event next;
+	while ((next = pending.poll(time)) != null) {
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    pending.free(next);
+	    numHandlersInvoked++;
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (traceInterrupts)
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
+    private long nextInterruptTime() {
+	return pending.nextTime();
+    }
+
+    /**
+     * Return every pending interrupt, in the order they will occur.
+     *
+     * @return	a list of the pending events.
+     */
+    List<TimingWheel.Event> pendingInterrupts() {
+	return pending.events();
+    }
+
+    /**
+     * Set the simulated time to the time of a snapshot, which may be earlier
+     * than the current time. Each pending interrupt is moved to the time of
+     * the first interrupt of the same type in the snapshot, if there is one
+     * not already taken, and otherwise keeps its distance from the current
+     * time. Interrupts in the snapshot that are not pending are dropped.
+     *
+     * @param	time	the time of the snapshot.
+     * @param	types	the types of the interrupts pending in the snapshot.
+     * @param	times	the times of the interrupts pending in the snapshot.
+     */
+    void restoreTime(long time, String[] types, long[] times) {
+	Lib.assertTrue(disabled());
+	Lib.assertTrue(types.length == times.length);
+
+	long oldTime = privilege.stats.totalTicks;
+
+	List<TimingWheel.Event> events = pending.events();
+	for (Iterator<TimingWheel.Event> i=events.iterator(); i.hasNext(); )
+	    pending.cancel(i.next());
+
+	boolean[] taken = new boolean[types.length];
+	final long[] newTimes = new long[events.size()];
+	for (int i=0; i<newTimes.length; i++) {
+	    TimingWheel.Event event = events.get(i);
+	    newTimes[i] = time + (event.time - oldTime);
+
+	    for (int j=0; j<types.length; j++) {
+		if (!taken[j] && types[j].equals(event.type)) {
+		    taken[j] = true;
+		    newTimes[i] = times[j];
+		    break;
+		}
+	    }
+
+	    if (newTimes[i] <= time)
+		newTimes[i] = time + 1;
+	}
+
+	// schedule in time order, so that events due together keep their order
+	Integer[] order = new Integer[newTimes.length];
+	for (int i=0; i<order.length; i++)
+	    order[i] = i;
+	Arrays.sort(order, new Comparator<Integer>() {
+	    public int compare(Integer a, Integer b) {
+		long ta = newTimes[a.intValue()], tb = newTimes[b.intValue()];
+		return (ta != tb) ? (ta < tb ? -1 : 1) : a.compareTo(b);
+	    }
+	});
+
+	privilege.stats.totalTicks = time;
+	pending.rebase(time);
+
+	for (int i=0; i<order.length; i++) {
+	    int k = order[i].intValue();
+	    TimingWheel.Event event = events.get(k);
+
+	    if (traceInterrupts)
+		System.out.println("Restoring the " + event.type +
+				   " interrupt handler at time = " + newTimes[k]);
+
+	    pending.schedule(event, newTimes[k]);
+	}
+    }
+
     private void print() {
 	System.out.println("Time: " + privilege.stats.totalTicks
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	for (Iterator<TimingWheel.Event> i=pending.events().iterator();
+	     i.hasNext(); ) {
+	    TimingWheel.Event toOccur = i.next();
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,53 +348,67 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
+    private Privilege privilege;
+
+    private boolean enabled;
+    private TimingWheel pending;
+    private boolean fastForward;
+    private long numHandlersInvoked = 0;
+    private long numHandlersAtIdle = 0;
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+    private static final char dbgInt = 'i';
+    /** Tested once, so that building trace messages costs nothing when off. */
+    private static final boolean traceInterrupts = Lib.test(dbgInt);
 
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+    /**
+     * An interrupt a device reschedules without allocating anything. Its
+     * event is not pooled, so it stays with the handle between occurrences.
+     */
+    private class InterruptHandle implements Privilege.InterruptHandle {
+	InterruptHandle(String type, Runnable handler) {
+	    event = pending.newEvent(type, handler);
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	public void schedule(long when) {
+	    Interrupt.this.schedule(event, when);
+	}
 
-	private long id;
-    }
-    
-    private long numPendingInterruptsCreated = 0;
+	public void cancel() {
+	    if (event.isScheduled())
+		pending.cancel(event);
+	}
 
-    private Privilege privilege;
+	public boolean isPending() {
+	    return event.isScheduled();
+	}
 
-    private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+	public long getTime() {
+	    return event.time;
+	}
 
-    private static final char dbgInt = 'i';
+	private TimingWheel.Event event;
+    }
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 	public void schedule(long when, String type, Runnable handler) {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
+	public Privilege.InterruptHandle newInterrupt(String type,
+						      Runnable handler) {
+	    return new InterruptHandle(type, handler);
+	}
+
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(boolean inKernelMode, int numTicks) {
+	    Interrupt.this.tick(inKernelMode, numTicks);
+	}
+
+	public long nextInterruptTime() {
+	    return Interrupt.this.nextInterruptTime();
+	}
     }
 }
@@ -50,8 +50,15 @@ public final class Machine {
 	privilege.machine = new MachinePrivilege();
 
 	TCB.givePrivilege(privilege);
+	Snapshot.givePrivilege(privilege, testDirectory);
 	privilege.stats = stats;
 
+	if (Config.getBoolean("Stats.threadMetrics", false)) {
+	    stats.threadMetrics =
+		new ThreadMetrics(privilege,
+				  Config.getString("Stats.threadMetricsFile"));
+	}
+
 	securityManager.enable();
 	createDevices();
 	checkUserClasses();
@@ -97,6 +104,8 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+	if (processor != null)
+	    processor.printProfile();
 	terminate();
     }
 
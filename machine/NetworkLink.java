@@ -113,6 +113,11 @@ public class NetworkLink {
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
+
+	receiveEvent =
+	    privilege.interrupt.newInterrupt("network recv", receiveInterrupt);
+	sendEvent =
+	    privilege.interrupt.newInterrupt("network send", sendInterrupt);
 	
 	scheduleReceiveInterrupt();
 
@@ -156,8 +161,7 @@ public class NetworkLink {
     }
 
     private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
-				     receiveInterrupt);
+	receiveEvent.schedule(Stats.NetworkTime);
     }
 
     private synchronized void receiveInterrupt() {
@@ -240,8 +244,7 @@ public class NetworkLink {
     }		
     
     private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.NetworkTime, "network send",
-				     sendInterrupt);
+	sendEvent.schedule(Stats.NetworkTime);
     }
 
     private void sendInterrupt() {
@@ -311,6 +314,8 @@ public class NetworkLink {
 
     private Runnable receiveInterrupt;
     private Runnable sendInterrupt;
+    private Privilege.InterruptHandle receiveEvent;
+    private Privilege.InterruptHandle sendEvent;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,18 +52,160 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	String memoryFileName = Config.getString("Processor.memoryFile");
+	if (memoryFileName == null) {
+	    mainMemory = new byte[pageSize * numPhysPages];
+	    memory = ByteBuffer.wrap(mainMemory);
+	}
+	else {
+	    mainMemory = null;
+	    mapMemory(new File(memoryFileName));
+	    Lib.assertTrue(memory != null);
+	}
+	memory.order(ByteOrder.LITTLE_ENDIAN);
+
+	decodedPages = new DecodedInstruction[numPhysPages][];
+
+	String traceLogName = Config.getString("Processor.traceLog");
+	if (traceLogName != null) {
+	    traceLog = new TraceLog(privilege, traceLogName,
+				    Config.getInteger("Processor.traceLogSize",
+						      0x10000));
+	}
+	else {
+	    traceLog = null;
+	}
+
+	if (Config.getBoolean("Processor.profile", false)) {
+	    String[] opcodeNames = new String[Mips.numEntries];
+	    Mips[][] tables = { Mips.optable, Mips.specialtable,
+				Mips.regimmtable };
+	    for (int i=0; i<tables.length; i++) {
+		for (int j=0; j<tables[i].length; j++)
+		    opcodeNames[tables[i][j].index] = tables[i][j].name;
+	    }
+
+	    profiler = new Profiler(numPhysPages, opcodeNames,
+				    Config.getInteger("Processor.profileInterval",
+						      64));
+	}
+	else {
+	    profiler = null;
+	}
+
+	// handlers do not print, so they are not used when tracing
+	if (Config.getBoolean("Processor.threadedDispatch", false) &&
+	    !traceProcessor && !traceDisassemble && !traceFullDisassemble) {
+	    handlers = new Handler[Mips.numEntries];
+	    Mips[][] tables = { Mips.optable, Mips.specialtable,
+				Mips.regimmtable };
+	    for (int i=0; i<tables.length; i++) {
+		for (int j=0; j<tables[i].length; j++) {
+		    String name = tables[i][j].name;
+		    handlers[tables[i][j].index] =
+			createHandler(name.substring(0, name.indexOf(' ')));
+		}
+	    }
+	}
+
+	// translation is skipped when tracing, so traces stay per-instruction
+	blockTranslation =
+	    Config.getBoolean("Processor.blockTranslation", false) &&
+	    !traceProcessor && !traceDisassemble && !traceFullDisassemble &&
+	    traceLog == null;
+
+	// likewise, -d i wants to see every tick
+	batchTicks = Config.getBoolean("Processor.batchTicks", false) &&
+	    !Lib.test(dbgInterrupt);
+
+	if (blockTranslation) {
+	    blockThreshold = Config.getInteger("Processor.blockThreshold", 16);
+	    Lib.assertTrue(blockThreshold > 0);
+
+	    blockPages = new BasicBlock[numPhysPages][];
+	    branchCounts = new int[numPhysPages][];
+	}
 
 	if (usingTLB) {
+	    if (Config.getBoolean("Processor.variableTLB", false)) {
+		tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+		tlbWays = Config.getInteger("Processor.tlbAssociativity", 0);
+	    }
+	    if (tlbWays == 0)
+		tlbWays = tlbSize;
+
+	    Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0);
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    // a fully associative TLB is searched through hash chains of
+	    // valid entries, instead of a linear scan
+	    if (tlbWays == tlbSize) {
+		int numBuckets = 1;
+		while (numBuckets < tlbSize*2)
+		    numBuckets *= 2;
+		
+		tlbBuckets = new int[numBuckets];
+		for (int i=0; i<numBuckets; i++)
+		    tlbBuckets[i] = -1;
+		tlbNext = new int[tlbSize];
+	    }
 	}
 	else {
 	    translations = null;
 	}
     }
 
+    /**
+     * Back physical memory with a memory-mapped file instead of the Java
+     * heap. The file is truncated and then extended to the size of memory, so
+     * memory starts out zeroed.
+     *
+     * @param	file	the file to map.
+     */
+    private void mapMemory(final File file) {
+	privilege.doPrivileged(new Runnable() {
+	    public void run() {
+		try {
+		    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		    raf.setLength(0);
+		    raf.setLength((long) pageSize * numPhysPages);
+		    memory = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						  0, raf.length());
+		    raf.close();
+		}
+		catch (IOException e) {
+		    System.out.println("could not map " + file);
+		}
+	    }
+	});
+    }
+
+    /**
+     * Called by <tt>CoffSection.loadPage()</tt> after loading a page, so
+     * that the profiler can attribute samples to the page's section.
+     *
+     * @param	fileName	the name of the executable.
+     * @param	section		the section the page belongs to.
+     * @param	spn		the page number within the section.
+     * @param	ppn		the physical page it was loaded into.
+     */
+    void pageLoaded(String fileName, CoffSection section, int spn, int ppn) {
+	if (profiler != null)
+	    profiler.pageLoaded(fileName, section, spn, ppn);
+    }
+
+    /**
+     * Print the profile of the user programs run so far, if profiling is
+     * enabled. Called by <tt>Machine.halt()</tt>.
+     */
+    void printProfile() {
+	if (profiler != null)
+	    profiler.print();
+    }
+
     /**
      * Set the exception handler, called whenever a user exception occurs.
      *
@@ -91,9 +240,18 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	ticksUntilDue = 0;
+	epoch++;
+
 	Instruction inst = new Instruction();
 	
 	while (true) {
+	    if (registers[regPC] == branchTarget && blockTranslation) {
+		branchTarget = -1;
+		if (runBlocks(inst))
+		    continue;
+	    }
+	    
 	    try {
 		inst.run();
 	    }
@@ -101,8 +259,43 @@ public final class Processor {
 		e.handle();
 	    }
 
+	    tick();
+	}
+    }
+
+    /**
+     * Advance the simulated time by one user tick. When ticks are batched,
+     * they are only added to the statistics when the next interrupt falls
+     * due, or when the kernel is about to run; until then no interrupt
+     * handler could have run anyway.
+     */
+    private void tick() {
+	if (!batchTicks) {
 	    privilege.interrupt.tick(false);
+	    return;
 	}
+
+	if (++batchedTicks >= ticksUntilDue) {
+	    flushTicks();
+
+	    long next = privilege.interrupt.nextInterruptTime();
+	    ticksUntilDue = (int) Math.min(next - privilege.stats.totalTicks,
+					   maxBatchedTicks);
+	}
+    }
+
+    /**
+     * Charge any batched user ticks, invoking the interrupt handlers that are
+     * now due. The next tick recalculates the deadline, since a handler may
+     * schedule a new interrupt or switch to another thread.
+     */
+    private void flushTicks() {
+	int numTicks = batchedTicks;
+	batchedTicks = 0;
+	ticksUntilDue = 0;
+
+	if (numTicks > 0)
+	    privilege.interrupt.tick(false, numTicks);
     }
 
     /**
@@ -175,6 +368,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	epoch++;
     }
 
     /**
@@ -188,6 +382,22 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the associativity of this processor's TLB. The TLB is divided
+     * into <tt>getTLBSize() / getTLBAssociativity()</tt> sets of consecutive
+     * entries, and a valid entry for virtual page <i>vpn</i> must be placed in
+     * set number <tt>vpn % (getTLBSize() / getTLBAssociativity())</tt>.
+     * If the associativity equals the TLB size, the TLB is fully associative
+     * and any entry can hold any page.
+     *
+     * @return	the number of entries in each set of the TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +415,10 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * By default the TLB is fully associative, so the location of an entry
+     * within the TLB does not affect anything. Otherwise, a valid entry must
+     * be placed in the set selected by its virtual page number (see
+     * <tt>getTLBAssociativity()</tt>).
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,8 +426,71 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid || tlbWays == tlbSize ||
+		       number / tlbWays == entry.vpn % (tlbSize / tlbWays));
+
+	TranslationEntry slot = translations[number];
+
+	if (tlbBuckets != null && slot.valid)
+	    unlinkTLBEntry(number);
+
+	// overwrite the entry in place
+	slot.vpn = entry.vpn;
+	slot.ppn = entry.ppn;
+	slot.valid = entry.valid;
+	slot.readOnly = entry.readOnly;
+	slot.used = entry.used;
+	slot.dirty = entry.dirty;
+
+	if (tlbBuckets != null && slot.valid)
+	    linkTLBEntry(number);
+	
+	epoch++;
+    }
+
+    /**
+     * Add the specified TLB entry to the hash chain for its virtual page.
+     * Chains are kept in order of entry number, so that if two entries map
+     * the same page, the lower numbered one is found first, just as with a
+     * linear scan.
+     *
+     * @param	number	the index into the TLB.
+     */
+    private void linkTLBEntry(int number) {
+	int bucket = translations[number].vpn & (tlbBuckets.length-1);
+
+	int prev = -1, i = tlbBuckets[bucket];
+	while (i != -1 && i < number) {
+	    prev = i;
+	    i = tlbNext[i];
+	}
 
-	translations[number] = new TranslationEntry(entry);
+	tlbNext[number] = i;
+	if (prev == -1)
+	    tlbBuckets[bucket] = number;
+	else
+	    tlbNext[prev] = number;
+    }
+
+    /**
+     * Remove the specified TLB entry from the hash chain for its virtual page.
+     *
+     * @param	number	the index into the TLB.
+     */
+    private void unlinkTLBEntry(int number) {
+	int bucket = translations[number].vpn & (tlbBuckets.length-1);
+
+	int prev = -1, i = tlbBuckets[bucket];
+	while (i != number) {
+	    Lib.assertTrue(i != -1);
+	    prev = i;
+	    i = tlbNext[i];
+	}
+
+	if (prev == -1)
+	    tlbBuckets[bucket] = tlbNext[number];
+	else
+	    tlbNext[prev] = tlbNext[number];
     }
 
     /**
@@ -232,12 +507,73 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * There is no array when memory is mapped from a file (see
+     * <tt>Processor.memoryFile</tt>); use <tt>getMemoryBuffer()</tt>, which
+     * works either way.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null);
+	
 	return mainMemory;
     }
 
+    /**
+     * Return a new buffer view of physical memory, with little-endian byte
+     * order. The view has its own position and limit, so it can be used for
+     * relative bulk transfers without affecting anyone else. The capacity of
+     * the buffer is <tt>pageSize * getNumPhysPages()</tt>.
+     *
+     * @return	a buffer sharing the contents of main memory.
+     */
+    public ByteBuffer getMemoryBuffer() {
+	return memory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Read <i>size</i> (1, 2, or 4) bytes of physical memory at
+     * <i>paddr</i>. Bytes and halfwords are sign-extended, as with
+     * <tt>Lib.bytesToInt()</tt>.
+     *
+     * @param	paddr	the physical address to read from.
+     * @param	size	the number of bytes to read.
+     * @return	the value read.
+     */
+    private int readPhysical(int paddr, int size) {
+	switch (size) {
+	case 1:
+	    return memory.get(paddr);
+	case 2:
+	    return memory.getShort(paddr);
+	default:
+	    return memory.getInt(paddr);
+	}
+    }
+
+    /**
+     * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i> to
+     * physical memory at <i>paddr</i>.
+     *
+     * @param	paddr	the physical address to write to.
+     * @param	size	the number of bytes to write.
+     * @param	value	the value to store.
+     */
+    private void writePhysical(int paddr, int size, int value) {
+	switch (size) {
+	case 1:
+	    memory.put(paddr, (byte) value);
+	    break;
+	case 2:
+	    memory.putShort(paddr, (short) value);
+	    break;
+	default:
+	    memory.putInt(paddr, value);
+	    break;
+	}
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -289,12 +625,15 @@ public final class Processor {
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	cache	remembers the last page translated for this kind of
+     *			reference.
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    private int translate(int vaddr, int size, boolean writing,
+			  TranslationCache cache)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
@@ -308,29 +647,20 @@ public final class Processor {
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
-	TranslationEntry entry = null;
+	// reuse the last entry if nothing could have changed it since
+	TranslationEntry entry;
+	if (cache.vpn == vpn && cache.epoch == epoch)
+	    entry = cache.entry;
+	else
+	    entry = lookup(vpn);
 
-	// if not using a TLB, then the vpn is an index into the table
-	if (!usingTLB) {
-	    if (translations == null || vpn >= translations.length ||
-		translations[vpn] == null ||
-		!translations[vpn].valid) {
+	if (entry == null) {
+	    if (!usingTLB) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
 		throw new MipsException(exceptionPageFault, vaddr);
 	    }
-
-	    entry = translations[vpn];
-	}
-	// else, look through all TLB entries for matching vpn
-	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
-	    if (entry == null) {
+	    else {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
 		throw new MipsException(exceptionTLBMiss, vaddr);
@@ -355,13 +685,83 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
+	cache.vpn = vpn;
+	cache.entry = entry;
+	cache.epoch = epoch;
+
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
 
+    /**
+     * Find the valid translation entry for virtual page <i>vpn</i>, using
+     * either the page table or the TLB.
+     *
+     * @param	vpn	the virtual page number to look up.
+     * @return	the matching entry, or <tt>null</tt> if there is none.
+     */
+    private TranslationEntry lookup(int vpn) {
+	// if not using a TLB, then the vpn is an index into the table
+	if (!usingTLB) {
+	    if (translations == null || vpn >= translations.length ||
+		translations[vpn] == null ||
+		!translations[vpn].valid)
+		return null;
+
+	    return translations[vpn];
+	}
+
+	Stats stats = privilege.stats;
+	stats.numTLBLookups++;
+
+	// if the TLB is fully associative, follow the hash chain for the vpn
+	if (tlbBuckets != null) {
+	    for (int i=tlbBuckets[vpn & (tlbBuckets.length-1)]; i!=-1;
+		 i=tlbNext[i]) {
+		stats.numTLBProbes++;
+		if (translations[i].vpn == vpn)
+		    return translations[i];
+	    }
+	    return null;
+	}
+	// else, look through the entries in the set for matching vpn
+	else {
+	    int first = (vpn % (tlbSize / tlbWays)) * tlbWays;
+	    for (int i=first; i<first+tlbWays; i++) {
+		stats.numTLBProbes++;
+		if (translations[i].valid && translations[i].vpn == vpn)
+		    return translations[i];
+	    }
+	    return null;
+	}
+    }
+
+    /**
+     * Translate the address of an instruction fetch without raising an
+     * exception. Sets the used bit of the entry exactly as
+     * <tt>translate()</tt> would, but does not count page faults or TLB
+     * misses; if the fetch would fail, the caller is expected to leave it to
+     * the interpreter, which will raise the exception itself.
+     *
+     * @param	vaddr	the virtual address of the instruction.
+     * @return	the physical address, or <tt>-1</tt> if the fetch would fail.
+     */
+    private int probe(int vaddr) {
+	if ((vaddr & 0x3) != 0)
+	    return -1;
+
+	TranslationEntry entry = lookup(pageFromAddress(vaddr));
+	if (entry == null || entry.ppn < 0 || entry.ppn >= numPhysPages)
+	    return -1;
+
+	entry.used = true;
+
+	return (entry.ppn*pageSize) + offsetFromAddress(vaddr);
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -372,16 +772,20 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int paddr = translate(vaddr, size, false, dataCache);
+	int value = readPhysical(paddr, size);
+
+	if (traceLog != null)
+	    traceLog.record(TraceLog.recordRead | (size<<8), vaddr, paddr,
+			    value);
 
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,15 +803,232 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true, dataCache);
+	writePhysical(paddr, size, value);
+
+	if (traceLog != null)
+	    traceLog.record(TraceLog.recordWrite | (size<<8), vaddr, paddr,
+			    value);
+
+	// drop any predecoded copy of the word we just overwrote
+	DecodedInstruction[] decodedPage = decodedPages[paddr / pageSize];
+	if (decodedPage != null && decodedPage[(paddr % pageSize) / 4] != null) {
+	    decodedPage[(paddr % pageSize) / 4] = null;
+	    epoch++;
+	}
+    }
+
+    /**
+     * Return the predecoded form of the instruction word <i>value</i>, found
+     * at physical address <i>paddr</i>. The cached copy is reused as long as
+     * the word in memory has not changed since it was decoded, so code that
+     * the kernel overwrites directly through <tt>getMemory()</tt> is decoded
+     * afresh.
+     *
+     * @param	paddr	the physical address the instruction was fetched from.
+     * @param	value	the instruction word.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction predecode(int paddr, int value) {
+	int ppn = paddr / pageSize;
+	
+	DecodedInstruction[] decodedPage = decodedPages[ppn];
+	if (decodedPage == null) {
+	    decodedPage = new DecodedInstruction[pageSize / 4];
+	    decodedPages[ppn] = decodedPage;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	DecodedInstruction decoded = decodedPage[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    if (handlers != null)
+		decoded.handler = handlers[decoded.opcode];
+	    decodedPage[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Run the translated block starting at the current PC, and carry on into
+     * the blocks that follow it for as long as no kernel code runs in between.
+     * Each instruction is followed by a tick, and exceptions are handled,
+     * exactly as in the loop in <tt>run()</tt>, so the kernel cannot tell
+     * the difference. Control returns to the interpreter as soon as the epoch
+     * changes, or when the next PC does not start a hot block.
+     *
+     * @param	inst	the instruction state used by <tt>run()</tt>.
+     * @return	<tt>true</tt> if any instructions were executed.
+     */
+    private boolean runBlocks(Instruction inst) {
+	int vaddr = registers[regPC];
+	int paddr = probe(vaddr);
+	if (paddr == -1)
+	    return false;
+
+	BasicBlock block = findBlock(paddr);
+	if (block == null)
+	    return false;
+
+	int startEpoch = epoch;
+	boolean executed = false;
+
+	while (true) {
+	    if (block.epoch != epoch && !validateBlock(block))
+		return executed;
+
+	    DecodedInstruction[] code = block.code;
+	    for (int i=0; i<code.length; i++) {
+		executed = true;
+		
+		try {
+		    inst.run(code[i], block.paddr + i*4);
+		}
+		catch (MipsException e) {
+		    e.handle();
+		    tick();
+		    return true;
+		}
+
+		tick();
+
+		if (epoch != startEpoch)
+		    return true;
+	    }
+
+	    // nothing has been remapped, so a PC on the same virtual page is
+	    // still on the same physical page
+	    int nextVAddr = registers[regPC];
+	    if (pageFromAddress(nextVAddr) == pageFromAddress(vaddr) &&
+		(nextVAddr & 0x3) == 0) {
+		paddr = (paddr/pageSize)*pageSize + offsetFromAddress(nextVAddr);
+	    }
+	    else {
+		paddr = probe(nextVAddr);
+		if (paddr == -1)
+		    return true;
+	    }
+	    vaddr = nextVAddr;
+
+	    block = findBlock(paddr);
+	    if (block == null)
+		return true;
+	}
+    }
+
+    /**
+     * Return the translated block starting at physical address <i>paddr</i>.
+     * A block is only translated once its start address has been reached
+     * <tt>blockThreshold</tt> times.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the block, or <tt>null</tt> if the address is not hot yet.
+     */
+    private BasicBlock findBlock(int paddr) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	BasicBlock[] blockPage = blockPages[ppn];
+	if (blockPage != null && blockPage[index] != null)
+	    return blockPage[index];
+
+	int[] counts = branchCounts[ppn];
+	if (counts == null) {
+	    counts = new int[pageSize / 4];
+	    branchCounts[ppn] = counts;
+	}
+
+	if (++counts[index] < blockThreshold)
+	    return null;
+
+	counts[index] = 0;
+
+	BasicBlock block = translateBlock(paddr);
+	if (block != null) {
+	    if (blockPage == null) {
+		blockPage = new BasicBlock[pageSize / 4];
+		blockPages[ppn] = blockPage;
+	    }
+	    blockPage[index] = block;
+	}
+	
+	return block;
+    }
+
+    /**
+     * Translate the basic block starting at physical address <i>paddr</i>. The
+     * block ends with the delay slot of the first branch or jump, with the
+     * first syscall or illegal instruction, or at the end of the page.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the new block, or <tt>null</tt> if it would be empty.
+     */
+    private BasicBlock translateBlock(int paddr) {
+	int pageEnd = (paddr/pageSize + 1) * pageSize;
+	
+	DecodedInstruction[] code = new DecodedInstruction[maxBlockLength];
+	int length = 0;
+	boolean delaySlot = false;
+
+	for (int a=paddr; a<pageEnd && length<maxBlockLength; a+=4) {
+	    DecodedInstruction decoded =
+		predecode(a, memory.getInt(a));
+
+	    if (decoded.test(Mips.BRANCH) && !delaySlot) {
+		// a branch needs its delay slot in the same block
+		if (a+4 >= pageEnd || length+1 >= maxBlockLength)
+		    break;
+		delaySlot = true;
+		code[length++] = decoded;
+		continue;
+	    }
+
+	    code[length++] = decoded;
+
+	    if (delaySlot || decoded.operation == Mips.SYSCALL ||
+		decoded.operation == Mips.UNIMPL ||
+		decoded.operation == Mips.INVALID)
+		break;
+	}
+
+	if (length == 0)
+	    return null;
+
+	DecodedInstruction[] trimmed = new DecodedInstruction[length];
+	System.arraycopy(code, 0, trimmed, 0, length);
+
+	return new BasicBlock(paddr, trimmed, epoch);
+    }
+
+    /**
+     * Check that memory still holds the words <i>block</i> was translated
+     * from. The kernel may have loaded new code through <tt>getMemory()</tt>
+     * since the block was last run, so this is done once per epoch. A stale
+     * block is dropped, to be translated again once it gets hot.
+     *
+     * @param	block	the block to check.
+     * @return	<tt>true</tt> if the block is still valid.
+     */
+    private boolean validateBlock(BasicBlock block) {
+	DecodedInstruction[] code = block.code;
+	for (int i=0; i<code.length; i++) {
+	    if (memory.getInt(block.paddr + i*4) != code[i].value) {
+		blockPages[block.paddr / pageSize][(block.paddr % pageSize) / 4] =
+		    null;
+		return false;
+	    }
+	}
+
+	block.epoch = epoch;
+	return true;
     }
 
     /**
@@ -541,6 +1162,15 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays;
+    /**
+     * For a fully associative TLB, the first entry in each hash chain, or
+     * <tt>-1</tt>. Only valid entries are chained.
+     */
+    private int[] tlbBuckets = null;
+    /** The next entry in the same hash chain as each TLB entry, or -1. */
+    private int[] tlbNext;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -553,8 +1183,52 @@ public final class Processor {
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
+    /**
+     * Main memory for user programs, or <tt>null</tt> if memory is mapped
+     * from a file.
+     */
     private byte[] mainMemory;
+    /** Little-endian view of main memory, used for all accesses. */
+    private ByteBuffer memory = null;
+    /**
+     * Predecoded instructions, indexed by physical page number and then by
+     * word within the page. The array for a page is allocated the first time
+     * an instruction is fetched from it.
+     */
+    private DecodedInstruction[][] decodedPages;
+
+    /** The last page translated for an instruction fetch. */
+    private TranslationCache fetchCache = new TranslationCache();
+    /** The last page translated for a load or store. */
+    private TranslationCache dataCache = new TranslationCache();
+
+    /** <tt>true</tt> if hot basic blocks are translated. */
+    private boolean blockTranslation;
+    /** Number of times a branch target is reached before it is translated. */
+    private int blockThreshold;
+    /** Translated blocks, indexed like <tt>decodedPages</tt>. */
+    private BasicBlock[][] blockPages;
+    /** Number of times each untranslated branch target has been reached. */
+    private int[][] branchCounts;
+    /** The target of the last branch taken, or <tt>-1</tt>. */
+    private int branchTarget = -1;
+    /**
+     * Bumped whenever kernel code runs, address translation changes, or user
+     * code overwrites an instruction. Translated blocks only run back to back,
+     * and cached translations are only reused, while this stays the same.
+     */
+    private int epoch = 0;
+    /** <tt>true</tt> if user ticks are charged in batches. */
+    private boolean batchTicks;
+    /** User ticks executed but not yet charged. */
+    private int batchedTicks = 0;
+    /** The number of user ticks left before the next interrupt is due. */
+    private int ticksUntilDue = 0;
+    /** The most user ticks charged in one batch. */
+    private static final int maxBatchedTicks = 0x10000;
+    
+    /** The most instructions in a translated block. */
+    private static final int maxBlockLength = 64;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -562,10 +1236,32 @@ public final class Processor {
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgInterrupt = 'i';
+
+    /*
+     * The debug flags are fixed by the time the processor is created, so
+     * test them once; with tracing off, the tests compile away.
+     */
+    private static final boolean traceProcessor = Lib.test(dbgProcessor);
+    private static final boolean traceDisassemble = Lib.test(dbgDisassemble);
+    private static final boolean traceFullDisassemble =
+	Lib.test(dbgFullDisassemble);
+
+    /**
+     * The specialized handler for each opcode number, or <tt>null</tt> if
+     * instructions are dispatched through the switch in
+     * <tt>Instruction.execute()</tt>.
+     */
+    private Handler[] handlers = null;
+    /** Profiles user programs, if set. */
+    private final Profiler profiler;
+    /** Records recent fetches, memory accesses and exceptions, if set. */
+    private final TraceLog traceLog;
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    epoch++;
 	}
     }
 
@@ -584,15 +1280,24 @@ public final class Processor {
 	}
 
 	public void handle() {
+	    // the kernel must see the right time
+	    if (batchTicks)
+		flushTicks();
+	    
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
 		writeRegister(regBadVAddr, badVAddr);
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble || traceFullDisassemble)
 		System.out.println("exception: " + exceptionNames[cause]);
 
+	    if (traceLog != null)
+		traceLog.record(TraceLog.recordException, cause,
+				registers[regPC], hasBadVAddr ? badVAddr : 0);
+
 	    finishLoad();
+	    epoch++;
 
 	    Lib.assertTrue(exceptionHandler != null);
 
@@ -612,133 +1317,167 @@ public final class Processor {
 	    // hopefully this looks familiar to 152 students?
 	    fetch();
 	    decode();
-	    execute();
-	    writeBack();
+	    dispatch();
 	}	
 
+	/**
+	 * Execute an instruction that has already been fetched and decoded,
+	 * as part of a translated block.
+	 *
+	 * @param	decoded	the instruction to execute.
+	 * @param	paddr	the physical address it was fetched from.
+	 */
+	public void run(DecodedInstruction decoded, int paddr)
+	    throws MipsException {
+	    this.decoded = decoded;
+	    this.paddr = paddr;
+	    dispatch();
+	}
+
+	private void dispatch() throws MipsException {
+	    if (profiler == null) {
+		perform();
+		return;
+	    }
+
+	    /* An instruction that faults is run again once the kernel has
+	     * handled the fault, so only count it once it completes. A syscall
+	     * completes by trapping, and is not run again.
+	     */
+	    try {
+		perform();
+	    }
+	    catch (MipsException e) {
+		if (e.cause == exceptionSyscall)
+		    profile();
+		throw e;
+	    }
+	    profile();
+	}
+
+	private void perform() throws MipsException {
+	    if (decoded.handler != null) {
+		decoded.handler.run(decoded);
+	    }
+	    else {
+		readOperands();
+		execute();
+		writeBack();
+	    }
+	}
+
 	private boolean test(int flag) {
-	    return Lib.test(flag, flags);
+	    return decoded.test(flag);
 	}
 
 	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if ((traceDisassemble && !traceProcessor) || traceFullDisassemble)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (traceProcessor)
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    paddr = translate(registers[regPC], 4, false, fetchCache);
+	    value = memory.getInt(paddr);
+
+	    if (traceLog != null)
+		traceLog.record(TraceLog.recordFetch, registers[regPC], paddr,
+				value);
+
+	    if (traceProcessor)
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    decoded = predecode(paddr, value);
+	}
 
+	private void readOperands() {
+	    int rs = decoded.rs;
+	    
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
 	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
-
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
-	    if (format == Mips.RFMT)
+	    if (decoded.format == Mips.RFMT)
 		jtarget = registers[rs];
-	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
-	    else if (format == Mips.JFMT)
-		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+	    else if (decoded.format == Mips.IFMT)
+		jtarget = registers[regNextPC] + decoded.branchOffset;
+	    else if (decoded.format == Mips.JFMT)
+		jtarget = (registers[regNextPC]&0xF0000000) |
+		    decoded.jumpTarget;
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
-	    addr = registers[rs] + imm;
+	    addr = registers[rs] + decoded.imm;
 
 	    // get src1
 	    if (test(Mips.SRC1SH))
-		src1 = sh;
+		src1 = decoded.sh;
 	    else
 		src1 = registers[rs];
 
 	    // get src2
 	    if (test(Mips.SRC2IMM))
-		src2 = imm;
+		src2 = decoded.imm;
 	    else
-		src2 = registers[rt];
+		src2 = registers[decoded.rt];
 
 	    if (test(Mips.UNSIGNED)) {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble || traceFullDisassemble)
 		print();	    
 	}
 
+	private void profile() {
+	    profiler.countInstruction(paddr, decoded.opcode);
+
+	    switch (decoded.operation) {
+	    case Mips.LOAD:
+	    case Mips.LWL:
+	    case Mips.LWR:
+		profiler.countLoad(decoded.size);
+		break;
+	    case Mips.STORE:
+	    case Mips.SWL:
+	    case Mips.SWR:
+		profiler.countStore(decoded.size);
+		break;
+	    }
+	}
+
 	private void print() {
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    int rs = decoded.rs, rt = decoded.rt, rd = decoded.rd;
+	    int imm = decoded.imm, sh = decoded.sh;
+	    
+	    if (traceDisassemble && traceProcessor && !traceFullDisassemble)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 	    
-	    if (operation == Mips.INVALID) {
-		System.out.print("invalid: op=" + Lib.toHexString(op, 2) +
+	    if (decoded.operation == Mips.INVALID) {
+		System.out.print("invalid: op=" +
+				 Lib.toHexString(decoded.op, 2) +
 				 " rs=" + Lib.toHexString(rs, 2) +
 				 " rt=" + Lib.toHexString(rt, 2) +
 				 " rd=" + Lib.toHexString(rd, 2) +
 				 " sh=" + Lib.toHexString(sh, 2) +
-				 " func=" + Lib.toHexString(func, 2) +
+				 " func=" + Lib.toHexString(decoded.func, 2) +
 				 "\n");
 		return;
 	    }
 
+	    String name = decoded.name;
 	    int spaceIndex = name.indexOf(' ');
 	    Lib.assertTrue(spaceIndex!=-1 && spaceIndex==name.lastIndexOf(' '));
 
@@ -756,7 +1495,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 		    
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (traceFullDisassemble) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -768,7 +1507,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 
-		    if (Lib.test(dbgFullDisassemble) &&
+		    if (traceFullDisassemble &&
 			(i!=0 || !test(Mips.DST)) &&
 			!test(Mips.DELAYEDLOAD)) {
 			System.out.print("#0x" +
@@ -800,7 +1539,7 @@ public final class Processor {
 		    minCharsPrinted += 4;
 		    maxCharsPrinted += 5;
 
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (traceFullDisassemble) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -840,8 +1579,7 @@ public final class Processor {
 		}
 	    }
 
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble && traceProcessor && !traceFullDisassemble)
 		System.out.print("\n");
 	}
 
@@ -849,7 +1587,7 @@ public final class Processor {
 	    int value;
 	    int preserved;
 	    
-	    switch (operation) {
+	    switch (decoded.operation) {
 	    case Mips.ADD:
 		dst = src1 + src2;
 		break;
@@ -900,7 +1638,7 @@ public final class Processor {
 		dst = src1 ^ src2;
 		break;
 	    case Mips.LUI:
-		dst = imm << 16;
+		dst = decoded.imm << 16;
 		break;
 
 	    case Mips.BEQ:
@@ -942,10 +1680,10 @@ public final class Processor {
 		throw new MipsException(exceptionSyscall);
 
 	    case Mips.LOAD:
-		value = readMem(addr, size);
+		value = readMem(addr, decoded.size);
 		
 		if (!test(Mips.UNSIGNED))
-		    dst = Lib.extend(value, 0, size*8);
+		    dst = Lib.extend(value, 0, decoded.size*8);
 		else
 		    dst = value;
 		
@@ -974,7 +1712,7 @@ public final class Processor {
 		break;
 
 	    case Mips.STORE:
-		writeMem(addr, size, (int) src2);
+		writeMem(addr, decoded.size, (int) src2);
 		break;
 
 	    case Mips.SWL:
@@ -1022,18 +1760,18 @@ public final class Processor {
 		throw new MipsException(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
-		delayedLoad(dstReg, (int) dst, mask);
+		delayedLoad(decoded.dstReg, (int) dst, mask);
 	    else
 		finishLoad();
 
 	    if (test(Mips.LINK))
 		dst = nextPC;
 
-	    if (test(Mips.DST) && dstReg != 0)
-		registers[dstReg] = (int) dst;
+	    if (test(Mips.DST) && decoded.dstReg != 0)
+		registers[decoded.dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
+	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && decoded.dstReg != 0) {
+		if (traceFullDisassemble) {
 		    System.out.print("#0x" + Lib.toHexString((int) dst));
 		    if (test(Mips.DELAYEDLOAD))
 			System.out.print(" (delayed load)");
@@ -1042,27 +1780,451 @@ public final class Processor {
 
 	    if (test(Mips.BRANCH) && branch) {
 		nextPC = jtarget;
+		branchTarget = jtarget;
 	    }
 
 	    advancePC(nextPC);
 
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if ((traceDisassemble && !traceProcessor) || traceFullDisassemble)
 		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
-	int operation, format, flags;
-	String name;
+	int value, paddr;
+	DecodedInstruction decoded;
 
-	int size;
-	int addr, nextPC, jtarget, dstReg;
+	int addr, nextPC, jtarget;
 	long src1, src2, dst;
 	int mask;	
 	boolean branch;
     }
 
+    /**
+     * Executes one particular kind of instruction. A handler reads its own
+     * operands, does the operation and writes back the result, in the same
+     * order as <tt>Instruction</tt> (operands are read before the previous
+     * delayed load completes), but without consulting the instruction
+     * flags. Handlers are chosen when an instruction is predecoded.
+     */
+    private abstract class Handler {
+	/**
+	 * Execute the instruction.
+	 *
+	 * @param	d	the instruction to execute.
+	 */
+	abstract void run(DecodedInstruction d) throws MipsException;
+    }
+
+    /**
+     * Complete an instruction that writes a result to a register.
+     *
+     * @param	dstReg	the destination register.
+     * @param	value	the result.
+     */
+    private void finishResult(int dstReg, int value) {
+	finishLoad();
+	if (dstReg != 0)
+	    registers[dstReg] = value;
+	advancePC(registers[regNextPC]+4);
+    }
+
+    /**
+     * Complete an instruction that writes a result to a register, unless
+     * the result overflowed 32 bits.
+     *
+     * @param	dstReg	the destination register.
+     * @param	value	the 64-bit result.
+     */
+    private void finishChecked(int dstReg, long value) throws MipsException {
+	if (Lib.test(value,31) != Lib.test(value,32))
+	    throw new MipsException(exceptionOverflow);
+
+	finishResult(dstReg, (int) value);
+    }
+
+    /**
+     * Complete a branch or jump.
+     *
+     * @param	d	the instruction.
+     * @param	taken	<tt>true</tt> if the branch is taken.
+     * @param	target	the branch target.
+     * @param	link	<tt>true</tt> if the return address is saved.
+     */
+    private void finishBranch(DecodedInstruction d, boolean taken,
+			      int target, boolean link) {
+	int nextPC = registers[regNextPC]+4;
+
+	finishLoad();
+	if (link && d.dstReg != 0)
+	    registers[d.dstReg] = nextPC;
+
+	if (taken) {
+	    nextPC = target;
+	    branchTarget = target;
+	}
+	advancePC(nextPC);
+    }
+
+    /**
+     * Complete a load.
+     *
+     * @param	dstReg	the destination register.
+     * @param	value	the value loaded.
+     */
+    private void finishLoad(int dstReg, int value) {
+	delayedLoad(dstReg, value, 0xFFFFFFFF);
+	advancePC(registers[regNextPC]+4);
+    }
+
+    /**
+     * Complete a store.
+     */
+    private void finishStore() {
+	finishLoad();
+	advancePC(registers[regNextPC]+4);
+    }
+
+    /**
+     * Return the branch target of an I-format instruction.
+     */
+    private int branchTarget(DecodedInstruction d) {
+	return registers[regNextPC] + d.branchOffset;
+    }
+
+    /**
+     * Return the jump target of a J-format instruction.
+     */
+    private int jumpTarget(DecodedInstruction d) {
+	return (registers[regNextPC]&0xF0000000) | d.jumpTarget;
+    }
+
+    /**
+     * Create the handler for instructions with mnemonic <i>name</i>. The
+     * arithmetic is done exactly as in <tt>Instruction.execute()</tt>,
+     * including its use of 64-bit intermediates.
+     *
+     * @param	name	the mnemonic.
+     * @return	the new handler, or <tt>null</tt> if the instruction should
+     *		take the general path through <tt>Instruction</tt>.
+     */
+    private Handler createHandler(String name) {
+	switch (name) {
+	case "addu":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[d.rs] + registers[d.rt]);
+	    }};
+	case "addiu":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[d.rs] + d.imm);
+	    }};
+	case "add":
+	    return new Handler() {
+		void run(DecodedInstruction d) throws MipsException {
+		    finishChecked(d.dstReg,
+				  (long) registers[d.rs] + registers[d.rt]);
+		}};
+	case "addi":
+	    return new Handler() {
+		void run(DecodedInstruction d) throws MipsException {
+		    finishChecked(d.dstReg, (long) registers[d.rs] + d.imm);
+		}};
+	case "subu":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[d.rs] - registers[d.rt]);
+	    }};
+	case "sub":
+	    return new Handler() {
+		void run(DecodedInstruction d) throws MipsException {
+		    finishChecked(d.dstReg,
+				  (long) registers[d.rs] - registers[d.rt]);
+		}};
+
+	case "and":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[d.rs] & registers[d.rt]);
+	    }};
+	case "andi":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[d.rs] & d.imm);
+	    }};
+	case "or":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[d.rs] | registers[d.rt]);
+	    }};
+	case "ori":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[d.rs] | d.imm);
+	    }};
+	case "xor":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[d.rs] ^ registers[d.rt]);
+	    }};
+	case "xori":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[d.rs] ^ d.imm);
+	    }};
+	case "nor":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, ~(registers[d.rs] | registers[d.rt]));
+	    }};
+	case "lui":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, d.imm << 16);
+	    }};
+
+	case "slt":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg,
+			     (registers[d.rs] < registers[d.rt]) ? 1 : 0);
+	    }};
+	case "sltu":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg,
+			     ((registers[d.rs] & 0xFFFFFFFFL) <
+			      (registers[d.rt] & 0xFFFFFFFFL)) ? 1 : 0);
+	    }};
+	case "slti":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, (registers[d.rs] < d.imm) ? 1 : 0);
+	    }};
+	case "sltiu":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg,
+			     ((registers[d.rs] & 0xFFFFFFFFL) <
+			      (d.imm & 0xFFFFFFFFL)) ? 1 : 0);
+	    }};
+
+	case "sll":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[d.rt] << (d.sh&0x1F));
+	    }};
+	case "sra":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[d.rt] >> (d.sh&0x1F));
+	    }};
+	case "srl":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg,
+			     (int) ((long) registers[d.rt] >>> (d.sh&0x1F)));
+	    }};
+	case "sllv":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg,
+			     registers[d.rt] << (registers[d.rs]&0x1F));
+	    }};
+	case "srav":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg,
+			     registers[d.rt] >> (registers[d.rs]&0x1F));
+	    }};
+	case "srlv":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg,
+			     (int) ((long) registers[d.rt] >>>
+				    (registers[d.rs]&0x1F)));
+	    }};
+
+	case "mflo":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[regLo]);
+	    }};
+	case "mfhi":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishResult(d.dstReg, registers[regHi]);
+	    }};
+
+	case "beq":
+	case "beql":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishBranch(d, registers[d.rs] == registers[d.rt],
+			     branchTarget(d), false);
+	    }};
+	case "bne":
+	case "bnel":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishBranch(d, registers[d.rs] != registers[d.rt],
+			     branchTarget(d), false);
+	    }};
+	case "blez":
+	case "blezl":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishBranch(d, registers[d.rs] <= 0, branchTarget(d), false);
+	    }};
+	case "bgtz":
+	case "bgtzl":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishBranch(d, registers[d.rs] > 0, branchTarget(d), false);
+	    }};
+	case "bltz":
+	case "bltzl":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishBranch(d, registers[d.rs] < 0, branchTarget(d), false);
+	    }};
+	case "bgez":
+	case "bgezl":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishBranch(d, registers[d.rs] >= 0, branchTarget(d), false);
+	    }};
+	case "j":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishBranch(d, true, jumpTarget(d), false);
+	    }};
+	case "jal":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishBranch(d, true, jumpTarget(d), true);
+	    }};
+	case "jr":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishBranch(d, true, registers[d.rs], false);
+	    }};
+	case "jalr":
+	    return new Handler() { void run(DecodedInstruction d) {
+		finishBranch(d, true, registers[d.rs], true);
+	    }};
+
+	case "lb":
+	case "lh":
+	case "lw":
+	    return new Handler() {
+		void run(DecodedInstruction d) throws MipsException {
+		    int value = readMem(registers[d.rs] + d.imm, d.size);
+		    finishLoad(d.dstReg, Lib.extend(value, 0, d.size*8));
+		}};
+	case "lbu":
+	case "lhu":
+	    return new Handler() {
+		void run(DecodedInstruction d) throws MipsException {
+		    finishLoad(d.dstReg,
+			       readMem(registers[d.rs] + d.imm, d.size));
+		}};
+	case "sb":
+	case "sh":
+	case "sw":
+	    return new Handler() {
+		void run(DecodedInstruction d) throws MipsException {
+		    writeMem(registers[d.rs] + d.imm, d.size, registers[d.rt]);
+		    finishStore();
+		}};
+
+	default:
+	    return null;
+	}
+    }
+
+    /**
+     * The translation entry most recently used for some kind of memory
+     * reference. It stays good until the epoch changes, since until then no
+     * kernel code has run to modify the page table or the TLB.
+     */
+    private static class TranslationCache {
+	/** The virtual page number that was translated. */
+	int vpn;
+	/** The entry it was translated with. */
+	TranslationEntry entry;
+	/** The epoch in which the entry was found. */
+	int epoch = -1;
+    }
+
+    /**
+     * A straight-line run of predecoded instructions within one physical
+     * page, executed back to back without going through fetch and decode.
+     */
+    private static class BasicBlock {
+	BasicBlock(int paddr, DecodedInstruction[] code, int epoch) {
+	    this.paddr = paddr;
+	    this.code = code;
+	    this.epoch = epoch;
+	}
+
+	/** The physical address of the first instruction. */
+	final int paddr;
+	/** The instructions in the block, in order. */
+	final DecodedInstruction[] code;
+	/** The epoch in which the block was last checked against memory. */
+	int epoch;
+    }
+
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * and not on the contents of any register. These are worked out once per
+     * word and then cached by <tt>predecode()</tt>.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    jumpTarget = Lib.extract(value, 0, 26) << 2;
+
+	    int imm = Lib.extend(value, 0, 16);
+	    branchOffset = imm << 2;
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    opcode = info.index;
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (test(Mips.SIZEB))
+		size = 1;
+	    else if (test(Mips.SIZEH))
+		size = 2;
+	    else if (test(Mips.SIZEW))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (test(Mips.DSTRA))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm
+	    if (test(Mips.UNSIGNED)) {
+		imm &= 0xFFFF;
+	    }
+	    this.imm = imm;
+	}
+
+	boolean test(int flag) {
+	    return Lib.test(flag, flags);
+	}
+
+	final int value, op, rs, rt, rd, sh, func, imm;
+	final int jumpTarget, branchOffset;
+	final int opcode, operation, format, flags;
+	final String name;
+
+	final int size, dstReg;
+
+	/** The specialized handler, or <tt>null</tt> to use the switch. */
+	Handler handler = null;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -1083,6 +2245,10 @@ public final class Processor {
 	int format;
 	int flags;
 
+	/** Numbers every entry in the tables below, for profiling. */
+	final int index = numEntries++;
+	static int numEntries;
+
 	// operation types
 	static final int
 	    INVALID	= 0,
@@ -0,0 +1,242 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Profiles the user programs run by the processor. Every instruction is
+ * counted by opcode, loads and stores are counted by size, and every
+ * <tt>sampleInterval</tt> instructions the physical address of the current
+ * instruction is sampled. Samples are attributed to the COFF section page
+ * that was last loaded into that physical page, so the report can name the
+ * program, section and offset of each hot PC.
+ */
+final class Profiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param	numPhysPages	the number of pages of physical memory.
+     * @param	opcodeNames	the name of each opcode, indexed by opcode
+     *				number.
+     * @param	sampleInterval	the number of instructions between samples.
+     */
+    Profiler(int numPhysPages, String[] opcodeNames, int sampleInterval) {
+	Lib.assertTrue(sampleInterval > 0);
+
+	this.opcodeNames = opcodeNames;
+	this.sampleInterval = sampleInterval;
+
+	opcodeCounts = new long[opcodeNames.length];
+	pageSections = new SectionProfile[numPhysPages];
+	pageOffsets = new int[numPhysPages];
+
+	untilSample = sampleInterval;
+    }
+
+    /**
+     * Note that a page of a COFF section has been loaded into physical
+     * memory, so that samples taken there are attributed to it.
+     *
+     * @param	fileName	the name of the executable.
+     * @param	section		the section.
+     * @param	spn		the page number within the section.
+     * @param	ppn		the physical page it was loaded into.
+     */
+    void pageLoaded(String fileName, CoffSection section, int spn, int ppn) {
+	SectionProfile profile = sections.get(section);
+	if (profile == null) {
+	    profile = new SectionProfile(fileName, section);
+	    sections.put(section, profile);
+	    sectionOrder.add(profile);
+	}
+
+	pageSections[ppn] = profile;
+	pageOffsets[ppn] = spn * Processor.pageSize;
+    }
+
+    /**
+     * Count an instruction, and take a sample if it is time to.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @param	opcode	the opcode number of the instruction.
+     */
+    void countInstruction(int paddr, int opcode) {
+	opcodeCounts[opcode]++;
+
+	if (--untilSample == 0) {
+	    untilSample = sampleInterval;
+	    numSamples++;
+
+	    int ppn = paddr / Processor.pageSize;
+	    SectionProfile profile = pageSections[ppn];
+	    if (profile != null)
+		profile.sample(pageOffsets[ppn] + paddr % Processor.pageSize);
+	    else
+		numUnattributed++;
+	}
+    }
+
+    /**
+     * Count a load.
+     *
+     * @param	size	the number of bytes loaded (1, 2, or 4), or 0 for one
+     *			half of an unaligned word load (<tt>lwl</tt> or
+     *			<tt>lwr</tt>).
+     */
+    void countLoad(int size) {
+	loadCounts[size]++;
+    }
+
+    /**
+     * Count a store.
+     *
+     * @param	size	the number of bytes stored (1, 2, or 4), or 0 for one
+     *			half of an unaligned word store (<tt>swl</tt> or
+     *			<tt>swr</tt>).
+     */
+    void countStore(int size) {
+	storeCounts[size]++;
+    }
+
+    /**
+     * Print the profile.
+     */
+    void print() {
+	System.out.println("Profile: samples " + numSamples
+			   + " (1 per " + sampleInterval + " instructions)"
+			   + ", unattributed " + numUnattributed);
+
+	// opcodes, most frequent first
+	TreeMap<String,Long> byName = new TreeMap<String,Long>();
+	long total = 0;
+	for (int i=0; i<opcodeCounts.length; i++) {
+	    if (opcodeCounts[i] == 0)
+		continue;
+
+	    String name = opcodeNames[i].trim();
+	    int spaceIndex = name.indexOf(' ');
+	    if (spaceIndex != -1)
+		name = name.substring(0, spaceIndex);
+
+	    long count = byName.containsKey(name) ? byName.get(name) : 0;
+	    byName.put(name, count + opcodeCounts[i]);
+	    total += opcodeCounts[i];
+	}
+
+	ArrayList<Map.Entry<String,Long>> opcodes =
+	    new ArrayList<Map.Entry<String,Long>>(byName.entrySet());
+	Collections.sort(opcodes, new Comparator<Map.Entry<String,Long>>() {
+	    public int compare(Map.Entry<String,Long> a,
+			       Map.Entry<String,Long> b) {
+		return b.getValue().compareTo(a.getValue());
+	    }
+	});
+
+	System.out.println("Instructions: total " + total);
+	for (Iterator<Map.Entry<String,Long>> i=opcodes.iterator();
+	     i.hasNext(); ) {
+	    Map.Entry<String,Long> entry = i.next();
+	    System.out.println("  " + entry.getKey() + "\t" + entry.getValue()
+			       + "\t" + percent(entry.getValue(), total));
+	}
+
+	System.out.println("Loads: bytes " + loadCounts[1]
+			   + ", halfwords " + loadCounts[2]
+			   + ", words " + loadCounts[4]
+			   + ", unaligned " + loadCounts[0]);
+	System.out.println("Stores: bytes " + storeCounts[1]
+			   + ", halfwords " + storeCounts[2]
+			   + ", words " + storeCounts[4]
+			   + ", unaligned " + storeCounts[0]);
+
+	for (Iterator<SectionProfile> i=sectionOrder.iterator(); i.hasNext(); )
+	    i.next().print();
+    }
+
+    private static String percent(long count, long total) {
+	return (count * 1000 / Math.max(total, 1)) / 10.0 + "%";
+    }
+
+    /**
+     * The samples taken in one section of an executable.
+     */
+    private class SectionProfile {
+	SectionProfile(String fileName, CoffSection section) {
+	    this.fileName = fileName;
+	    this.section = section;
+
+	    samples = new int[(section.getLength() * Processor.pageSize) / 4];
+	}
+
+	void sample(int offset) {
+	    samples[offset / 4]++;
+	    numSectionSamples++;
+	}
+
+	void print() {
+	    if (numSectionSamples == 0)
+		return;
+
+	    System.out.println("Section " + fileName + ":"
+			       + section.getName().trim()
+			       + ": samples " + numSectionSamples + ", "
+			       + percent(numSectionSamples, numSamples));
+
+	    // list the hottest words in the section
+	    Integer[] order = new Integer[samples.length];
+	    for (int i=0; i<order.length; i++)
+		order[i] = i;
+	    Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    return samples[b] - samples[a];
+		}
+	    });
+
+	    int firstVAddr = section.getFirstVPN() * Processor.pageSize;
+	    for (int i=0; i<order.length && i<maxHotPCs; i++) {
+		int index = order[i];
+		if (samples[index] == 0)
+		    break;
+
+		System.out.println("  PC=0x" +
+				   Lib.toHexString(firstVAddr + index*4)
+				   + " (" + section.getName().trim() + "+0x"
+				   + Integer.toHexString(index*4) + ")\t"
+				   + samples[index]);
+	    }
+	}
+
+	private String fileName;
+	private CoffSection section;
+	private int[] samples;
+	private int numSectionSamples = 0;
+    }
+
+    private String[] opcodeNames;
+    private long[] opcodeCounts;
+    private long[] loadCounts = new long[5];
+    private long[] storeCounts = new long[5];
+
+    private int sampleInterval;
+    private int untilSample;
+    private long numSamples = 0;
+    private long numUnattributed = 0;
+
+    private Map<CoffSection,SectionProfile> sections =
+	new HashMap<CoffSection,SectionProfile>();
+    private ArrayList<SectionProfile> sectionOrder =
+	new ArrayList<SectionProfile>();
+    private SectionProfile[] pageSections;
+    private int[] pageOffsets;
+
+    /** The most PCs listed for each section. */
+    private static final int maxHotPCs = 10;
+}
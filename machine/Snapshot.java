@@ -0,0 +1,477 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the state of the simulated machine: physical memory, the
+ * processor's registers and TLB, the statistics, and the time of every
+ * pending interrupt. The kernel adds its own state, such as page tables, as
+ * named byte arrays. A snapshot can be written to a file in the test
+ * directory and read back by a later run of Nachos, which then restores it
+ * instead of replaying the work that led up to it.
+ *
+ * <p>
+ * The image file is written and read through a memory mapping. Pages of
+ * memory that are all zero are left out, and the pages of a snapshot that
+ * was read are only copied out of the mapping when it is restored.
+ *
+ * <p>
+ * Only the machine can be restored this way. The Java state of the kernel,
+ * including the stacks of its threads, can not, so the kernel must take a
+ * snapshot at a point where its own state can be rebuilt from what it added.
+ */
+public final class Snapshot {
+    /**
+     * Allow snapshots to be written to and read from the test directory.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the directory that holds snapshot files.
+     */
+    static void givePrivilege(Privilege privilege, File directory) {
+	Snapshot.privilege = privilege;
+	Snapshot.directory = directory;
+    }
+
+    /**
+     * Take a snapshot of the machine as it is now. Interrupts must be
+     * disabled, so that nothing changes while the snapshot is taken.
+     */
+    public Snapshot() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Processor processor = Machine.processor();
+	Lib.assertTrue(processor != null);
+
+	numPhysPages = processor.getNumPhysPages();
+
+	registers = new int[Processor.numUserRegisters];
+	for (int i=0; i<registers.length; i++)
+	    registers[i] = processor.readRegister(i);
+
+	if (processor.hasTLB()) {
+	    tlb = new TranslationEntry[processor.getTLBSize()];
+	    for (int i=0; i<tlb.length; i++)
+		tlb[i] = processor.readTLBEntry(i);
+	}
+
+	Stats stats = privilege.stats;
+	statValues = new long[] {
+	    stats.totalTicks, stats.kernelTicks, stats.userTicks,
+	    stats.idleTicksSkipped,
+	    stats.numDiskReads, stats.numDiskWrites,
+	    stats.numConsoleReads, stats.numConsoleWrites,
+	    stats.numPageFaults, stats.numTLBMisses,
+	    stats.numTLBLookups, stats.numTLBProbes,
+	    stats.numPacketsSent, stats.numPacketsReceived,
+	    stats.numDeadlineMisses
+	};
+
+	List<TimingWheel.Event> events = Machine.interrupt().pendingInterrupts();
+	interruptTypes = new String[events.size()];
+	interruptTimes = new long[events.size()];
+	for (int i=0; i<interruptTypes.length; i++) {
+	    interruptTypes[i] = events.get(i).type;
+	    interruptTimes[i] = events.get(i).time;
+	}
+
+	ByteBuffer memory = processor.getMemoryBuffer();
+	pages = new ByteBuffer[numPhysPages];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    byte[] page = new byte[pageSize];
+	    memory.position(ppn*pageSize);
+	    memory.get(page);
+
+	    if (!isZero(page))
+		pages[ppn] = ByteBuffer.wrap(page);
+	}
+    }
+
+    private Snapshot(int numPhysPages) {
+	this.numPhysPages = numPhysPages;
+    }
+
+    /**
+     * Return the simulated time at which this snapshot was taken.
+     *
+     * @return	the value of <tt>Timer.getTime()</tt> when this snapshot was
+     *		taken.
+     */
+    public long getTime() {
+	return statValues[0];
+    }
+
+    /**
+     * Return the user registers saved in this snapshot.
+     *
+     * @return	a copy of the registers, indexed like
+     *		<tt>Processor.readRegister()</tt>.
+     */
+    public int[] getRegisters() {
+	return registers.clone();
+    }
+
+    /**
+     * Replace the user registers saved in this snapshot. When the snapshot is
+     * taken, the processor's registers may not belong to the thread the
+     * kernel wants to resume, which may have saved its registers elsewhere.
+     *
+     * @param	registers	the registers, indexed like
+     *				<tt>Processor.readRegister()</tt>.
+     */
+    public void setRegisters(int[] registers) {
+	Lib.assertTrue(registers.length == Processor.numUserRegisters);
+
+	this.registers = registers.clone();
+    }
+
+    /**
+     * Add some kernel state to this snapshot, replacing any state already
+     * added under the same name.
+     *
+     * @param	name	the name of the state.
+     * @param	data	the state.
+     */
+    public void putKernelState(String name, byte[] data) {
+	kernelState.put(name, data.clone());
+    }
+
+    /**
+     * Return the kernel state added to this snapshot under the specified
+     * name.
+     *
+     * @param	name	the name of the state.
+     * @return	the state, or <tt>null</tt> if there is none by that name.
+     */
+    public byte[] getKernelState(String name) {
+	byte[] data = kernelState.get(name);
+	return (data == null) ? null : data.clone();
+    }
+
+    /**
+     * Put the machine back in the state saved in this snapshot. Physical
+     * memory, the registers, the TLB and the statistics are overwritten, and
+     * the clock is set to the time of the snapshot. Each pending interrupt of
+     * a type that was pending in the snapshot is moved to the time it had
+     * there. Interrupts must be disabled.
+     */
+    public void restore() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Processor processor = Machine.processor();
+	Lib.assertTrue(processor.getNumPhysPages() == numPhysPages);
+
+	ByteBuffer memory = processor.getMemoryBuffer();
+	byte[] zeros = new byte[pageSize];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    memory.position(ppn*pageSize);
+	    if (pages[ppn] == null)
+		memory.put(zeros);
+	    else
+		memory.put(pages[ppn].duplicate());
+	}
+
+	for (int i=0; i<registers.length; i++)
+	    processor.writeRegister(i, registers[i]);
+
+	if (tlb != null) {
+	    Lib.assertTrue(processor.hasTLB() &&
+			   processor.getTLBSize() == tlb.length);
+
+	    for (int i=0; i<tlb.length; i++)
+		processor.writeTLBEntry(i, tlb[i]);
+	}
+
+	Stats stats = privilege.stats;
+	stats.kernelTicks = statValues[1];
+	stats.userTicks = statValues[2];
+	stats.idleTicksSkipped = statValues[3];
+	stats.numDiskReads = (int) statValues[4];
+	stats.numDiskWrites = (int) statValues[5];
+	stats.numConsoleReads = (int) statValues[6];
+	stats.numConsoleWrites = (int) statValues[7];
+	stats.numPageFaults = (int) statValues[8];
+	stats.numTLBMisses = (int) statValues[9];
+	stats.numTLBLookups = statValues[10];
+	stats.numTLBProbes = statValues[11];
+	stats.numPacketsSent = (int) statValues[12];
+	stats.numPacketsReceived = (int) statValues[13];
+	stats.numDeadlineMisses = (int) statValues[14];
+
+	Machine.interrupt().restoreTime(statValues[0], interruptTypes,
+					interruptTimes);
+    }
+
+    /**
+     * Write this snapshot to a file in the test directory.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if the snapshot was written.
+     */
+    public boolean write(final String name) {
+	if (!checkName(name))
+	    return false;
+
+	final boolean[] successful = new boolean[1];
+	privilege.doPrivileged(new Runnable() {
+	    public void run() {
+		try {
+		    writeImage(new File(directory, name));
+		    successful[0] = true;
+		}
+		catch (IOException e) {
+		}
+	    }
+	});
+
+	return successful[0];
+    }
+
+    /**
+     * Read a snapshot from a file in the test directory.
+     *
+     * @param	name	the name of the file.
+     * @return	the snapshot, or <tt>null</tt> if the file could not be read
+     *		or is not a snapshot.
+     */
+    public static Snapshot read(final String name) {
+	if (!checkName(name))
+	    return null;
+
+	final Snapshot[] snapshot = new Snapshot[1];
+	privilege.doPrivileged(new Runnable() {
+	    public void run() {
+		try {
+		    snapshot[0] = readImage(new File(directory, name));
+		}
+		catch (IOException e) {
+		}
+		catch (RuntimeException e) {
+		    // a truncated or corrupt image
+		}
+	    }
+	});
+
+	return snapshot[0];
+    }
+
+    private void writeImage(File file) throws IOException {
+	byte[][] types = new byte[interruptTypes.length][];
+	byte[][] names = new byte[kernelState.size()][];
+
+	// magic, memory size, page size, and the six counts
+	int size = 9*4 + registers.length*4 + statValues.length*8;
+	if (tlb != null)
+	    size += tlb.length*tlbEntrySize;
+	for (int i=0; i<types.length; i++) {
+	    types[i] = interruptTypes[i].getBytes(charset);
+	    size += 8 + 4 + types[i].length;
+	}
+	int j = 0;
+	for (Iterator<Map.Entry<String,byte[]>> i=kernelState.entrySet().iterator();
+	     i.hasNext(); j++) {
+	    Map.Entry<String,byte[]> entry = i.next();
+	    names[j] = entry.getKey().getBytes(charset);
+	    size += 4 + names[j].length + 4 + entry.getValue().length;
+	}
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    if (pages[ppn] != null)
+		size += 4 + pageSize;
+	}
+
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	    raf.setLength(size);
+	    FileChannel channel = raf.getChannel();
+	    MappedByteBuffer image =
+		channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+	    image.putInt(magic);
+	    image.putInt(numPhysPages);
+	    image.putInt(pageSize);
+
+	    image.putInt(registers.length);
+	    for (int i=0; i<registers.length; i++)
+		image.putInt(registers[i]);
+
+	    image.putInt(statValues.length);
+	    for (int i=0; i<statValues.length; i++)
+		image.putLong(statValues[i]);
+
+	    image.putInt(tlb == null ? -1 : tlb.length);
+	    for (int i=0; tlb!=null && i<tlb.length; i++) {
+		image.putInt(tlb[i].vpn);
+		image.putInt(tlb[i].ppn);
+		image.put((byte) ((tlb[i].valid ? 1 : 0) |
+				  (tlb[i].readOnly ? 2 : 0) |
+				  (tlb[i].used ? 4 : 0) |
+				  (tlb[i].dirty ? 8 : 0)));
+	    }
+
+	    image.putInt(types.length);
+	    for (int i=0; i<types.length; i++) {
+		image.putLong(interruptTimes[i]);
+		image.putInt(types[i].length);
+		image.put(types[i]);
+	    }
+
+	    image.putInt(names.length);
+	    j = 0;
+	    for (Iterator<byte[]> i=kernelState.values().iterator();
+		 i.hasNext(); j++) {
+		byte[] data = i.next();
+		image.putInt(names[j].length);
+		image.put(names[j]);
+		image.putInt(data.length);
+		image.put(data);
+	    }
+
+	    int numPages = 0;
+	    for (int ppn=0; ppn<numPhysPages; ppn++) {
+		if (pages[ppn] != null)
+		    numPages++;
+	    }
+	    image.putInt(numPages);
+	    for (int ppn=0; ppn<numPhysPages; ppn++) {
+		if (pages[ppn] != null) {
+		    image.putInt(ppn);
+		    image.put(pages[ppn].duplicate());
+		}
+	    }
+
+	    Lib.assertTrue(!image.hasRemaining());
+	    image.force();
+	}
+	finally {
+	    raf.close();
+	}
+    }
+
+    private static Snapshot readImage(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	MappedByteBuffer image;
+	try {
+	    image = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					 raf.length());
+	}
+	finally {
+	    // the mapping stays valid after the file is closed
+	    raf.close();
+	}
+
+	if (image.getInt() != magic)
+	    return null;
+
+	Snapshot snapshot = new Snapshot(image.getInt());
+	if (image.getInt() != pageSize)
+	    return null;
+
+	snapshot.registers = new int[image.getInt()];
+	if (snapshot.registers.length != Processor.numUserRegisters)
+	    return null;
+	for (int i=0; i<snapshot.registers.length; i++)
+	    snapshot.registers[i] = image.getInt();
+
+	snapshot.statValues = new long[image.getInt()];
+	if (snapshot.statValues.length != numStatValues)
+	    return null;
+	for (int i=0; i<snapshot.statValues.length; i++)
+	    snapshot.statValues[i] = image.getLong();
+
+	int tlbSize = image.getInt();
+	if (tlbSize >= 0) {
+	    snapshot.tlb = new TranslationEntry[tlbSize];
+	    for (int i=0; i<tlbSize; i++) {
+		int vpn = image.getInt();
+		int ppn = image.getInt();
+		int flags = image.get();
+		snapshot.tlb[i] = new TranslationEntry(vpn, ppn,
+						       (flags & 1) != 0,
+						       (flags & 2) != 0,
+						       (flags & 4) != 0,
+						       (flags & 8) != 0);
+	    }
+	}
+
+	int numInterrupts = image.getInt();
+	snapshot.interruptTypes = new String[numInterrupts];
+	snapshot.interruptTimes = new long[numInterrupts];
+	for (int i=0; i<numInterrupts; i++) {
+	    snapshot.interruptTimes[i] = image.getLong();
+	    snapshot.interruptTypes[i] = new String(getBytes(image), charset);
+	}
+
+	int numKernelState = image.getInt();
+	for (int i=0; i<numKernelState; i++) {
+	    String name = new String(getBytes(image), charset);
+	    snapshot.kernelState.put(name, getBytes(image));
+	}
+
+	snapshot.pages = new ByteBuffer[snapshot.numPhysPages];
+	int numPages = image.getInt();
+	for (int i=0; i<numPages; i++) {
+	    int ppn = image.getInt();
+	    ByteBuffer page = image.slice();
+	    page.limit(pageSize);
+	    snapshot.pages[ppn] = page;
+	    image.position(image.position() + pageSize);
+	}
+
+	return snapshot;
+    }
+
+    private static byte[] getBytes(ByteBuffer image) {
+	byte[] bytes = new byte[image.getInt()];
+	image.get(bytes);
+	return bytes;
+    }
+
+    private static boolean isZero(byte[] page) {
+	for (int i=0; i<page.length; i++) {
+	    if (page[i] != 0)
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Snapshot files must be directly in the test directory.
+     */
+    private static boolean checkName(String name) {
+	return name.length() > 0 && !name.startsWith(".") &&
+	    new File(name).getName().equals(name);
+    }
+
+    private int numPhysPages;
+    private int[] registers;
+    private TranslationEntry[] tlb = null;
+    private long[] statValues;
+    private String[] interruptTypes;
+    private long[] interruptTimes;
+    private LinkedHashMap<String,byte[]> kernelState =
+	new LinkedHashMap<String,byte[]>();
+    /** Each page of memory, or <tt>null</tt> for a page of zeros. */
+    private ByteBuffer[] pages;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final int magic = 0x4E534E50;	// "NSNP"
+    private static final int numStatValues = 15;
+    private static final int tlbEntrySize = 4 + 4 + 1;
+    private static final String charset = "UTF-8";
+
+    private static Privilege privilege = null;
+    private static File directory = null;
+}
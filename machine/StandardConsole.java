@@ -28,6 +28,11 @@ public class StandardConsole implements SerialConsole {
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
+
+	receiveEvent =
+	    privilege.interrupt.newInterrupt("console read", receiveInterrupt);
+	sendEvent =
+	    privilege.interrupt.newInterrupt("console write", sendInterrupt);
 	
 	scheduleReceiveInterrupt();
     }
@@ -39,8 +44,7 @@ public class StandardConsole implements SerialConsole {
     }
 
     private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
-				     receiveInterrupt);
+	receiveEvent.schedule(Stats.ConsoleTime);
     }
 
     /**
@@ -113,8 +117,7 @@ public class StandardConsole implements SerialConsole {
     }
 
     private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
-				     sendInterrupt);
+	sendEvent.schedule(Stats.ConsoleTime);
     }
 
     /**
@@ -150,6 +153,8 @@ public class StandardConsole implements SerialConsole {
 
     private Runnable receiveInterrupt;
     private Runnable sendInterrupt;
+    private Privilege.InterruptHandle receiveEvent;
+    private Privilege.InterruptHandle sendEvent;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
@@ -21,14 +21,24 @@ public final class Stats {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
 			   + ", user " + userTicks);
+	if (idleTicksSkipped > 0)
+	    System.out.println("Idle: ticks skipped " + idleTicksSkipped);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numTLBLookups > 0)
+	    System.out.println("TLB: lookups " + numTLBLookups
+			       + ", entries compared " + numTLBProbes);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numDeadlineMisses > 0)
+	    System.out.println("Real-time: deadlines missed "
+			       + numDeadlineMisses);
+	if (threadMetrics != null)
+	    threadMetrics.print();
     }
 
     /**
@@ -44,6 +54,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The part of <tt>kernelTicks</tt> that the idle thread skipped over
+     * rather than spinning through.
+     */
+    public long idleTicksSkipped = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -57,10 +72,31 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The total number of times the TLB has been searched. References that
+     * reuse the processor's cached translation of the last page, and
+     * instructions run from translated blocks, do not search the TLB, so
+     * this counts searches rather than references. Entering a translated
+     * block on another page searches the TLB once.
+     */
+    public long numTLBLookups = 0;
+    /** The total number of TLB entries compared while searching the TLB. */
+    public long numTLBProbes = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The number of deadlines real-time threads missed, as reported by the
+     * kernel's scheduler.
+     */
+    public int numDeadlineMisses = 0;
+
+    /**
+     * Scheduling statistics, or <tt>null</tt> if <tt>Stats.threadMetrics</tt>
+     * is not set.
+     */
+    public ThreadMetrics threadMetrics = null;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -6,6 +6,10 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +18,21 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is set and the JVM supports them, every TCB
+ * but the first runs on a virtual thread, so context switches park and unpark
+ * virtual threads instead of switching OS threads, and many more TCBs can be
+ * started. Otherwise each TCB gets a platform thread. The number of TCBs that
+ * can be running at once is <tt>TCB.maxThreads</tt>, or <tt>maxThreads</tt>
+ * if that is not set.
+ *
+ * <p>
+ * When a TCB is destroyed, its Java thread can wait in a pool to run the next
+ * TCB started, instead of ending, so that short-lived Nachos threads do not
+ * each cost a new Java thread. Up to <tt>TCB.poolSize</tt> Java threads are
+ * kept in the pool (none by default), and a thread left there for longer than
+ * <tt>TCB.poolIdleTime</tt> milliseconds ends.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +59,54 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	Lib.assertTrue(threadLimit > 0);
+
+	// spinning only helps if the other thread can run meanwhile
+	spinCount = Config.getInteger("TCB.spinCount",
+				      Runtime.getRuntime()
+				      .availableProcessors() > 1 ?
+				      defaultSpinCount : 0);
+	Lib.assertTrue(spinCount >= 0);
+
+	poolSize = Config.getInteger("TCB.poolSize", 0);
+	poolIdleTime = Config.getInteger("TCB.poolIdleTime", 10000) * 1000000L;
+	Lib.assertTrue(poolSize >= 0 && poolIdleTime > 0);
+
+	if (Config.getBoolean("TCB.virtualThreads", false))
+	    findVirtualThreadBuilder();
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt> by reflection, so that Nachos still
+     * builds and runs on JVMs without virtual threads.
+     */
+    private static void findVirtualThreadBuilder() {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			virtualThreadBuilder =
+			    Thread.class.getMethod("ofVirtual").invoke(null);
+			newVirtualThread =
+			    Class.forName("java.lang.Thread$Builder")
+			    .getMethod("unstarted", Runnable.class);
+
+			/* Start one virtual thread now, with privilege, so that
+			 * the JVM sets up its carrier threads.
+			 */
+			Thread warmup = newThread(new Runnable() {
+				public void run() { }
+			    });
+			warmup.start();
+			warmup.join();
+		    }
+		    catch (Exception e) {
+			virtualThreadBuilder = null;
+			newVirtualThread = null;
+		    }
+		}
+	    });
     }
     
     /**
@@ -66,7 +133,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,26 +153,38 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * If one is idle in the pool we use that, and otherwise we have to
+	     * make a new one. Creating Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    final Carrier carrier = takeIdleCarrier();
 
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    if (carrier != null) {
+		javaThread = carrier.thread;
+	    }
+	    else {
+		tcbTarget = new Carrier(this);
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() { javaThread = newThread(tcbTarget); }
+		    });
+
+		tcbTarget.thread = javaThread;
+	    }
 
 	    /* The Java thread hasn't yet started, but we need to get it
 	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	     * current TCB, starting the new Java thread (or handing this TCB to
+	     * the idle one), and waiting for it to wake us up from
+	     * threadroot(). Once the new TCB wakes us up, it's safe to context
+	     * switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    if (carrier != null)
+		carrier.assign(this);
+	    else
+		this.javaThread.start();
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -119,6 +198,110 @@ public final class TCB {
 	}
     }
 
+    /**
+     * Create the Java thread for a TCB, a virtual thread if possible.
+     */
+    private static Thread newThread(Runnable target) {
+	if (newVirtualThread != null) {
+	    try {
+		return (Thread) newVirtualThread.invoke(virtualThreadBuilder,
+							target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create virtual thread: " + e);
+	    }
+	}
+
+	return new Thread(target);
+    }
+
+    /**
+     * Take a Java thread from the pool of idle ones.
+     *
+     * @return	an idle carrier, or <tt>null</tt> if there are none.
+     */
+    private static Carrier takeIdleCarrier() {
+	if (poolSize == 0)
+	    return null;
+
+	Carrier carrier = idleCarriers.pollFirst();
+	if (carrier != null)
+	    numIdleCarriers.decrementAndGet();
+	return carrier;
+    }
+
+    /**
+     * The body of the Java thread of every TCB but the first. A carrier runs
+     * a TCB until it is destroyed, and then waits in the pool of idle
+     * carriers to be given another one. The pool is a stack, so the most
+     * recently used carriers are reused first and the others time out.
+     */
+    private static class Carrier implements Runnable {
+	Carrier(TCB tcb) {
+	    this.tcb = tcb;
+	}
+
+	public void run() {
+	    TCB next = tcb;
+	    while (next != null) {
+		next.threadroot();
+		tcb = null;
+
+		next = (!exiting && release()) ? awaitNext() : null;
+	    }
+	}
+
+	/**
+	 * Give this idle carrier a TCB to run.
+	 */
+	void assign(TCB tcb) {
+	    this.tcb = tcb;
+	    LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Put this carrier in the pool, unless it is full.
+	 */
+	private boolean release() {
+	    if (numIdleCarriers.incrementAndGet() > poolSize) {
+		numIdleCarriers.decrementAndGet();
+		return false;
+	    }
+
+	    idleCarriers.addFirst(this);
+	    return true;
+	}
+
+	/**
+	 * Wait for <tt>assign()</tt>, or leave the pool if it takes longer
+	 * than <tt>poolIdleTime</tt>. If another thread has already taken
+	 * this carrier from the pool, a TCB is on its way, so keep waiting.
+	 */
+	private TCB awaitNext() {
+	    long deadline = System.nanoTime() + poolIdleTime;
+
+	    while (true) {
+		TCB next = tcb;
+		if (next != null)
+		    return next;
+
+		long remaining = deadline - System.nanoTime();
+		if (remaining <= 0) {
+		    if (idleCarriers.remove(this)) {
+			numIdleCarriers.decrementAndGet();
+			return null;
+		    }
+		    remaining = poolIdleTime;
+		}
+
+		LockSupport.parkNanos(this, remaining);
+	    }
+	}
+
+	Thread thread;
+	private volatile TCB tcb;
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
@@ -157,6 +340,9 @@ public final class TCB {
 
 	TCB previous = currentTCB;
 	previous.running = false;
+
+	if (privilege.stats.threadMetrics != null)
+	    switchStartTime = System.nanoTime();
 	
 	this.interrupt();
 	previous.yield();
@@ -196,6 +382,28 @@ public final class TCB {
 	privilege.exit(0);
     }
 
+    /**
+     * End the Java thread of every TCB but the current one, for a Nachos
+     * that exits without exiting the JVM. Each of them is parked waiting for
+     * its turn to run, and is woken up as if it were being destroyed. The
+     * caller must then end the current thread with <tt>ThreadDeath</tt>.
+     */
+    private static void exitAll() {
+	exiting = true;
+
+	TCB[] tcbs = runningThreads.toArray(new TCB[0]);
+	for (int i=0; i<tcbs.length; i++) {
+	    if (tcbs[i] != currentTCB && tcbs[i].javaThread != null) {
+		tcbs[i].done = true;
+		tcbs[i].interrupt();
+	    }
+	}
+
+	// the first TCB's thread may outlive its TCB
+	if (parkedFirstThread != null)
+	    LockSupport.unpark(parkedFirstThread);
+    }
+
     /**
      * Test if the current JVM thread belongs to a Nachos TCB. The AWT event
      * dispatcher is an example of a non-Nachos thread.
@@ -238,6 +446,10 @@ public final class TCB {
 	    Lib.assertNotReached();
 	}
 	catch (ThreadDeath e) {
+	    // Nachos is exiting, but not the JVM
+	    if (exiting)
+		return;
+
 	    // make sure this TCB is being destroyed properly
 	    if (!done) {
 		System.out.print("\nTCB terminated improperly!\n");
@@ -247,6 +459,16 @@ public final class TCB {
 	    runningThreads.removeElement(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* Virtual threads do not keep the JVM alive, so the first TCB's
+	     * thread, which is not virtual, must not return while other TCBs
+	     * are still running. It returns once exitAll() is called.
+	     */
+	    if (isFirstTCB && newVirtualThread != null) {
+		parkedFirstThread = Thread.currentThread();
+		while (!exiting)
+		    LockSupport.park();
+	    }
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
@@ -277,32 +499,50 @@ public final class TCB {
 	}
 
 	currentTCB = this;
+
+	// only a switch started by contextSwitch() is measured
+	if (switchStartTime != 0) {
+	    privilege.stats.threadMetrics.contextSwitched(System.nanoTime() -
+							  switchStartTime);
+	    switchStartTime = 0;
+	}
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * Only the TCB handing control to this one unparks this thread, and it
+     * sets <tt>running</tt> first, so the loop only parks again if
+     * <tt>park()</tt> returns early or a permit was left over from the
+     * start-up ping-pong. Before parking, the flag is polled
+     * <tt>spinCount</tt> times, since on a multiprocessor a quick switch
+     * back, such as a yield ping-pong, often sets it within that time and
+     * avoids a park and unpark. Parking, unlike waiting on a monitor, does
+     * not pin a virtual thread to its carrier thread.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	for (int i=0; i<spinCount && !running; i++)
+	    Thread.onSpinWait();
+
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
+     * and unparking its Java thread. Used in the ping-pong process of
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -327,11 +567,42 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence, from <tt>TCB.maxThreads</tt>.
+     */
+    private static int threadLimit = maxThreads;
+
+    /**
+     * The Java threads waiting to run a TCB, most recently used first, and
+     * how many there are. At most <tt>poolSize</tt> are kept, each for at
+     * most <tt>poolIdleTime</tt> nanoseconds.
+     */
+    private static ConcurrentLinkedDeque<Carrier> idleCarriers =
+	new ConcurrentLinkedDeque<Carrier>();
+    private static AtomicInteger numIdleCarriers = new AtomicInteger();
+    private static int poolSize = 0;
+    private static long poolIdleTime;
+
+    /**
+     * The number of times <tt>waitForInterrupt()</tt> polls the
+     * <tt>running</tt> flag before parking, from <tt>TCB.spinCount</tt>.
+     */
+    private static int spinCount = 0;
+    private static final int defaultSpinCount = 512;
+
+    /**
+     * A <tt>Thread.Builder.OfVirtual</tt> and its <tt>unstarted()</tt>
+     * method, or <tt>null</tt> if TCBs use platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method newVirtualThread = null;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -354,7 +625,7 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -364,6 +635,23 @@ public final class TCB {
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    /**
+     * When the context switch in progress started, in host nanoseconds, if
+     * thread metrics are being kept and it has not been measured yet.
+     */
+    private static long switchStartTime = 0;
+
+    /**
+     * Set by <tt>exitAll()</tt>, so that the threads it wakes end quietly.
+     */
+    private static volatile boolean exiting = false;
+
+    /**
+     * The Java thread of the first TCB, once the first TCB has been destroyed
+     * and its thread is parked until <tt>exitAll()</tt>.
+     */
+    private static volatile Thread parkedFirstThread = null;
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -388,7 +676,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +688,7 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+    private Carrier tcbTarget;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -410,5 +698,8 @@ public final class TCB {
 	public void authorizeDestroy(KThread thread) {
 	    TCB.authorizeDestroy(thread);
 	}
+	public void exitAll() {
+	    TCB.exitAll();
+	}
     }
 }
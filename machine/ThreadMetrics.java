@@ -0,0 +1,272 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+import nachos.threads.KThread;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.PrintWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Scheduling statistics, kept when <tt>Stats.threadMetrics</tt> is set. The
+ * autograder reports every thread that becomes ready, starts running, or
+ * finishes, and from these the time each <tt>KThread</tt> spends ready,
+ * running and blocked is accumulated, in both simulated ticks and host
+ * nanoseconds. A running thread that is switched out without having been made
+ * ready is blocked. <tt>TCB</tt> reports the host time taken by each context
+ * switch.
+ *
+ * <p>
+ * Run queue waits and context switch times are also kept as histograms with
+ * power of two buckets. If <tt>Stats.threadMetricsFile</tt> is set, the per
+ * thread times are written to it as CSV when Nachos exits.
+ */
+public final class ThreadMetrics {
+    /**
+     * Allocate a new set of thread metrics.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the file to write per thread CSV to on exit, or
+     *				<tt>null</tt>.
+     */
+    public ThreadMetrics(Privilege privilege, String fileName) {
+	this.privilege = privilege;
+
+	if (fileName != null) {
+	    final File file = new File(fileName);
+	    privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { writeCSV(file); }
+	    });
+	}
+    }
+
+    /**
+     * Note which thread is the idle thread. Its time is tracked like any
+     * other thread's, but its run queue waits are not counted.
+     *
+     * @param	idleThread	the idle thread.
+     */
+    public void setIdleThread(KThread idleThread) {
+	this.idleThread = idleThread;
+    }
+
+    /**
+     * Note that a thread has been made ready.
+     *
+     * @param	thread	the thread.
+     */
+    public void readyThread(KThread thread) {
+	ThreadRecord record = recordFor(thread);
+	record.enter(stateReady, privilege.stats.totalTicks, System.nanoTime());
+    }
+
+    /**
+     * Note that a thread is now running. If a different thread was running
+     * and has not been made ready or finished, it is now blocked.
+     *
+     * @param	thread	the thread.
+     */
+    public void runningThread(KThread thread) {
+	long ticks = privilege.stats.totalTicks;
+	long nanos = System.nanoTime();
+
+	if (current != null && current.thread != thread &&
+	    current.state == stateRunning)
+	    current.enter(stateBlocked, ticks, nanos);
+
+	ThreadRecord record = recordFor(thread);
+	if (record.state == stateReady && thread != idleThread) {
+	    runQueueTicks.add(ticks - record.since);
+	    runQueueNanos.add(nanos - record.sinceNanos);
+	}
+
+	record.enter(stateRunning, ticks, nanos);
+	record.numDispatches++;
+	numDispatches++;
+
+	current = record;
+    }
+
+    /**
+     * Note that a thread has finished.
+     *
+     * @param	thread	the thread.
+     */
+    public void finishingThread(KThread thread) {
+	recordFor(thread).enter(stateFinished, privilege.stats.totalTicks,
+				System.nanoTime());
+    }
+
+    /**
+     * Note the host time taken by a context switch, from the outgoing thread
+     * calling <tt>TCB.contextSwitch()</tt> to the incoming thread running.
+     *
+     * @param	nanos	the time taken, in nanoseconds.
+     */
+    public void contextSwitched(long nanos) {
+	switchNanos.add(nanos);
+    }
+
+    /**
+     * Print a summary of the metrics.
+     */
+    public void print() {
+	System.out.println("Threads: " + records.size() + ", dispatches "
+			   + numDispatches + ", context switches "
+			   + switchNanos.count);
+	runQueueTicks.print("Run queue wait (ticks)");
+	runQueueNanos.print("Run queue wait (ns)");
+	switchNanos.print("Context switch (ns)");
+    }
+
+    private ThreadRecord recordFor(KThread thread) {
+	ThreadRecord record = records.get(thread);
+	if (record == null) {
+	    record = new ThreadRecord(thread);
+	    records.put(thread, record);
+	    order.add(record);
+	}
+	return record;
+    }
+
+    private void writeCSV(final File file) {
+	final long ticks = privilege.stats.totalTicks;
+	final long nanos = System.nanoTime();
+
+	privilege.doPrivileged(new Runnable() {
+	    public void run() {
+		try {
+		    PrintWriter out = new PrintWriter(
+			new BufferedWriter(new FileWriter(file)));
+
+		    out.println("thread,dispatches,"
+				+ "ready_ticks,running_ticks,blocked_ticks,"
+				+ "ready_ns,running_ns,blocked_ns");
+
+		    for (Iterator<ThreadRecord> i=order.iterator();
+			 i.hasNext(); )
+			i.next().writeCSV(out, ticks, nanos);
+
+		    out.close();
+		}
+		catch (IOException e) {
+		    System.out.println("could not write thread metrics "
+				       + file);
+		}
+	    }
+	});
+    }
+
+    /**
+     * The time one thread has spent in each state.
+     */
+    private static class ThreadRecord {
+	ThreadRecord(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Charge the time since the last change to the old state, and switch
+	 * to the new one.
+	 */
+	void enter(int newState, long ticks, long nanos) {
+	    if (state != stateNone) {
+		stateTicks[state] += ticks - since;
+		stateNanos[state] += nanos - sinceNanos;
+	    }
+
+	    state = newState;
+	    since = ticks;
+	    sinceNanos = nanos;
+	}
+
+	void writeCSV(PrintWriter out, long ticks, long nanos) {
+	    // charge the current state up to now, without changing it
+	    long[] t = stateTicks.clone();
+	    long[] n = stateNanos.clone();
+	    if (state != stateNone) {
+		t[state] += ticks - since;
+		n[state] += nanos - sinceNanos;
+	    }
+
+	    String name = thread.toString().replace("\"", "\"\"");
+	    out.println("\"" + name + "\","
+			+ numDispatches + ","
+			+ t[stateReady] + "," + t[stateRunning] + ","
+			+ t[stateBlocked] + ","
+			+ n[stateReady] + "," + n[stateRunning] + ","
+			+ n[stateBlocked]);
+	}
+
+	KThread thread;
+	int state = stateNone;
+	long since, sinceNanos;
+	long[] stateTicks = new long[numStates];
+	long[] stateNanos = new long[numStates];
+	long numDispatches = 0;
+    }
+
+    /**
+     * A histogram of non-negative values, with one bucket per power of two.
+     */
+    private static class Histogram {
+	void add(long value) {
+	    if (value < 0)
+		value = 0;
+
+	    buckets[64 - Long.numberOfLeadingZeros(value)]++;
+	    count++;
+	    sum += value;
+	    if (value > max)
+		max = value;
+	}
+
+	void print(String title) {
+	    if (count == 0)
+		return;
+
+	    System.out.println(title + ": count " + count + ", mean "
+			       + sum/count + ", max " + max);
+
+	    for (int i=0; i<buckets.length; i++) {
+		if (buckets[i] == 0)
+		    continue;
+
+		long low = (i == 0) ? 0 : 1L << (i-1);
+		long high = (i == 0) ? 0 : (1L << i) - 1;
+		System.out.println("  " + low + "-" + high + "\t" + buckets[i]);
+	    }
+	}
+
+	long[] buckets = new long[65];
+	long count = 0, sum = 0, max = 0;
+    }
+
+    private static final int stateNone = -1;
+    private static final int stateReady = 0;
+    private static final int stateRunning = 1;
+    private static final int stateBlocked = 2;
+    private static final int stateFinished = 3;
+    private static final int numStates = 4;
+
+    private Privilege privilege;
+    private KThread idleThread = null;
+
+    private HashMap<KThread,ThreadRecord> records =
+	new HashMap<KThread,ThreadRecord>();
+    private ArrayList<ThreadRecord> order = new ArrayList<ThreadRecord>();
+    private ThreadRecord current = null;
+    private long numDispatches = 0;
+
+    private Histogram runQueueTicks = new Histogram();
+    private Histogram runQueueNanos = new Histogram();
+    private Histogram switchNanos = new Histogram();
+}
@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If <tt>Timer.tickless</tt> is set, the timer is a one-shot timer instead.
+ * It interrupts only at the time last given to <tt>setInterrupt()</tt>, and
+ * the kernel decides when, if ever, the next interrupt is needed.
  */
 public final class Timer {
     /**
@@ -37,7 +42,14 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	timerEvent = privilege.interrupt.newInterrupt("timer", timerInterrupt);
+	autoGraderEvent =
+	    privilege.interrupt.newInterrupt("timerAG", autoGraderInterrupt);
+
+	tickless = Config.getBoolean("Timer.tickless", false);
+
+	if (!tickless)
+	    scheduleInterrupt();
     }
 
     /**
@@ -50,6 +62,40 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Test whether this timer is a one-shot timer, that only interrupts when
+     * it is set to with <tt>setInterrupt()</tt>.
+     *
+     * @return	<tt>true</tt> if the timer is in tickless mode.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Set the time of the next timer interrupt, replacing any time set
+     * before. Only allowed in tickless mode.
+     *
+     * @param	time	the time at which the timer should interrupt. If it
+     *			is not in the future, the timer interrupts on the next
+     *			tick.
+     */
+    public void setInterrupt(long time) {
+	Lib.assertTrue(tickless);
+
+	timerEvent.schedule(Math.max(time - getTime(), 1));
+    }
+
+    /**
+     * Stop the timer from interrupting until <tt>setInterrupt()</tt> is
+     * called again. Only allowed in tickless mode.
+     */
+    public void cancelInterrupt() {
+	Lib.assertTrue(tickless);
+
+	timerEvent.cancel();
+    }
+
     /**
      * Get the current time.
      *
@@ -60,7 +106,8 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (!tickless)
+	    scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -73,16 +120,20 @@ public final class Timer {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
 
-	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	timerEvent.schedule(delay);
     }
 
     private void scheduleAutoGraderInterrupt() {
-	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+	autoGraderEvent.schedule(1);
     }
 
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Privilege.InterruptHandle timerEvent;
+    private Privilege.InterruptHandle autoGraderEvent;
+
+    private boolean tickless;
 
     private Privilege privilege;
     private Runnable handler = null;
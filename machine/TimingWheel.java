@@ -0,0 +1,409 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel holding the pending interrupts. Scheduling an
+ * event is constant time, the time of the earliest event is always known, and
+ * each event is moved between levels at most once per level before it is
+ * dispatched.
+ *
+ * <p>
+ * Level <i>l</i> has <tt>numSlots</tt> slots, each covering
+ * <tt>numSlots<sup>l</sup></tt> ticks. An event is kept at the lowest level
+ * at which its time shares every higher digit with the current time of the
+ * wheel, so each level 0 slot holds events for exactly one time. When the
+ * wheel's time moves into a higher level slot, that slot's events are moved
+ * down. Events too far in the future for the top level wait in an overflow
+ * list.
+ *
+ * <p>
+ * Every slot is a FIFO list, and events only move down into slots that are
+ * still empty, so events due at the same time are dispatched in the order
+ * they were scheduled.
+ *
+ * <p>
+ * Events scheduled by time, type and handler come from a pool and go back to
+ * it once dispatched. Events made by <tt>newEvent()</tt> instead belong to
+ * their caller, who can schedule them again and again, and cancel them.
+ */
+final class TimingWheel {
+    /**
+     * Allocate a new, empty timing wheel.
+     */
+    TimingWheel() {
+	for (int level=0; level<numLevels; level++) {
+	    heads[level] = new Event[numSlots];
+	    tails[level] = new Event[numSlots];
+	}
+    }
+
+    /**
+     * Schedule an event.
+     *
+     * @param	time	the time the event is due. This must be later than
+     *			the time of every event already dispatched.
+     * @param	type	a name for the type of event.
+     * @param	handler	the handler to invoke when the event is due.
+     */
+    void schedule(long time, String type, Runnable handler) {
+	Event event = freeList;
+	if (event != null)
+	    freeList = event.next;
+	else
+	    event = new Event(true);
+
+	event.type = type;
+	event.handler = handler;
+
+	schedule(event, time);
+    }
+
+    /**
+     * Allocate an event that is not pooled, for the caller to schedule with
+     * <tt>schedule(Event, long)</tt>.
+     *
+     * @param	type	a name for the type of event.
+     * @param	handler	the handler to invoke when the event is due.
+     * @return	the new event.
+     */
+    Event newEvent(String type, Runnable handler) {
+	Event event = new Event(false);
+	event.type = type;
+	event.handler = handler;
+	return event;
+    }
+
+    /**
+     * Schedule an event that is not already scheduled.
+     *
+     * @param	event	the event.
+     * @param	time	the time the event is due. This must be later than
+     *			the time of every event already dispatched.
+     */
+    void schedule(Event event, long time) {
+	Lib.assertTrue(time > now && event.level == notScheduled);
+
+	event.time = time;
+	event.id = numEventsScheduled++;
+
+	insert(event);
+	size++;
+
+	if (time < nextTime)
+	    nextTime = time;
+    }
+
+    /**
+     * Remove a scheduled event without dispatching it.
+     *
+     * @param	event	the event.
+     */
+    void cancel(Event event) {
+	Lib.assertTrue(event.level != notScheduled);
+
+	unlink(event);
+	size--;
+
+	if (event.time == nextTime)
+	    nextTime = findNextTime();
+    }
+
+    /**
+     * Return the time of the earliest event.
+     *
+     * @return	the time of the earliest event, or <tt>Long.MAX_VALUE</tt> if
+     *		there are none.
+     */
+    long nextTime() {
+	return nextTime;
+    }
+
+    /**
+     * Test whether there are no events.
+     *
+     * @return	<tt>true</tt> if there are no events.
+     */
+    boolean isEmpty() {
+	return size == 0;
+    }
+
+    /**
+     * Remove the earliest event if it is due by the specified time. The
+     * returned event must be given back with <tt>free()</tt> once its fields
+     * have been read.
+     *
+     * @param	time	the current time.
+     * @return	the earliest event, or <tt>null</tt> if no event is due.
+     */
+    Event poll(long time) {
+	if (nextTime > time)
+	    return null;
+
+	if (nextTime != now)
+	    advance(nextTime);
+
+	Event event = heads[0][(int) (now & slotMask)];
+	unlink(event);
+	size--;
+
+	if (event.next == null)
+	    nextTime = findNextTime();
+
+	event.next = null;
+	return event;
+    }
+
+    /**
+     * Return an event returned by <tt>poll()</tt> to the pool, if it came from
+     * the pool.
+     *
+     * @param	event	the event.
+     */
+    void free(Event event) {
+	if (!event.pooled)
+	    return;
+
+	event.type = null;
+	event.handler = null;
+	event.next = freeList;
+	freeList = event;
+    }
+
+    /**
+     * Set the current time of an empty wheel, which may be earlier than the
+     * time of events already dispatched.
+     *
+     * @param	time	the new current time.
+     */
+    void rebase(long time) {
+	Lib.assertTrue(size == 0);
+
+	now = time;
+	nextTime = Long.MAX_VALUE;
+    }
+
+    /**
+     * Return every event, in the order they will be dispatched.
+     *
+     * @return	a list of the events.
+     */
+    List<Event> events() {
+	ArrayList<Event> events = new ArrayList<Event>(size);
+
+	for (int level=0; level<numLevels; level++) {
+	    for (int slot=0; slot<numSlots; slot++) {
+		for (Event e=heads[level][slot]; e!=null; e=e.next)
+		    events.add(e);
+	    }
+	}
+	for (Event e=overflowHead; e!=null; e=e.next)
+	    events.add(e);
+
+	Collections.sort(events, new Comparator<Event>() {
+	    public int compare(Event a, Event b) {
+		if (a.time != b.time)
+		    return a.time < b.time ? -1 : 1;
+		else
+		    return a.id < b.id ? -1 : (a.id > b.id ? 1 : 0);
+	    }
+	});
+
+	return events;
+    }
+
+    /**
+     * Add an event at the right level for the current time of the wheel.
+     */
+    private void insert(Event event) {
+	long diff = event.time ^ now;
+	int level = (63 - Long.numberOfLeadingZeros(diff|1)) / slotBits;
+
+	event.next = null;
+
+	if (level >= numLevels) {
+	    event.level = overflowLevel;
+	    event.prev = overflowTail;
+	    if (overflowTail == null)
+		overflowHead = event;
+	    else
+		overflowTail.next = event;
+	    overflowTail = event;
+	    return;
+	}
+
+	int slot = (int) ((event.time >>> (level*slotBits)) & slotMask);
+	event.level = level;
+	event.slot = slot;
+	event.prev = tails[level][slot];
+	if (tails[level][slot] == null)
+	    heads[level][slot] = event;
+	else
+	    tails[level][slot].next = event;
+	tails[level][slot] = event;
+
+	occupied[level] |= 1L << slot;
+    }
+
+    /**
+     * Remove an event from the list it is in. Its <tt>next</tt> field is
+     * left alone, so that lists can be walked while they are emptied.
+     */
+    private void unlink(Event event) {
+	if (event.level == overflowLevel) {
+	    if (event.prev == null)
+		overflowHead = event.next;
+	    else
+		event.prev.next = event.next;
+	    if (event.next == null)
+		overflowTail = event.prev;
+	    else
+		event.next.prev = event.prev;
+	}
+	else {
+	    int level = event.level, slot = event.slot;
+	    if (event.prev == null)
+		heads[level][slot] = event.next;
+	    else
+		event.prev.next = event.next;
+	    if (event.next == null)
+		tails[level][slot] = event.prev;
+	    else
+		event.next.prev = event.prev;
+
+	    if (heads[level][slot] == null)
+		occupied[level] &= ~(1L << slot);
+	}
+
+	event.level = notScheduled;
+	event.prev = null;
+    }
+
+    /**
+     * Move the current time of the wheel forward to the time of the earliest
+     * event, moving down the events of every slot the wheel enters.
+     */
+    private void advance(long time) {
+	long oldTime = now;
+	now = time;
+
+	if ((oldTime >>> (numLevels*slotBits)) != (time >>> (numLevels*slotBits))) {
+	    Event e = overflowHead;
+	    overflowHead = overflowTail = null;
+	    while (e != null) {
+		Event next = e.next;
+		insert(e);
+		e = next;
+	    }
+	}
+
+	for (int level=numLevels-1; level>0; level--) {
+	    int shift = level*slotBits;
+	    if ((oldTime >>> shift) == (time >>> shift))
+		continue;
+
+	    int slot = (int) ((time >>> shift) & slotMask);
+	    Event e = heads[level][slot];
+	    if (e == null)
+		continue;
+
+	    heads[level][slot] = tails[level][slot] = null;
+	    occupied[level] &= ~(1L << slot);
+
+	    while (e != null) {
+		Event next = e.next;
+		insert(e);
+		e = next;
+	    }
+	}
+    }
+
+    /**
+     * Find the time of the earliest event. Events at a lower level are always
+     * earlier than events at a higher level, and only slots after the current
+     * one can be occupied.
+     */
+    private long findNextTime() {
+	for (int level=0; level<numLevels; level++) {
+	    if (occupied[level] == 0)
+		continue;
+
+	    int shift = level*slotBits;
+	    int current = (int) ((now >>> shift) & slotMask);
+	    long ahead = occupied[level] & (-1L << current);
+	    if (ahead == 0)
+		continue;
+
+	    int slot = Long.numberOfTrailingZeros(ahead);
+	    if (level == 0)
+		return (now & ~slotMask) | slot;
+
+	    return earliest(heads[level][slot]);
+	}
+
+	return earliest(overflowHead);
+    }
+
+    private static long earliest(Event list) {
+	long time = Long.MAX_VALUE;
+	for (Event e=list; e!=null; e=e.next) {
+	    if (e.time < time)
+		time = e.time;
+	}
+	return time;
+    }
+
+    /**
+     * A pending event.
+     */
+    static final class Event {
+	private Event(boolean pooled) {
+	    this.pooled = pooled;
+	}
+
+	/**
+	 * Test whether this event is scheduled.
+	 *
+	 * @return	<tt>true</tt> if this event is waiting to be dispatched.
+	 */
+	boolean isScheduled() {
+	    return level != notScheduled;
+	}
+
+	/** The time the event is due. */
+	long time;
+	/** A name for the type of event. */
+	String type;
+	/** The handler to invoke when the event is due. */
+	Runnable handler;
+
+	private long id;
+	private final boolean pooled;
+	private int level = notScheduled, slot;
+	private Event next, prev;
+    }
+
+    private static final int slotBits = 6;
+    private static final int numSlots = 1 << slotBits;
+    private static final long slotMask = numSlots - 1;
+    private static final int numLevels = 4;
+    private static final int overflowLevel = numLevels;
+    private static final int notScheduled = -1;
+
+    private Event[][] heads = new Event[numLevels][];
+    private Event[][] tails = new Event[numLevels][];
+    private long[] occupied = new long[numLevels];
+    private Event overflowHead = null, overflowTail = null;
+
+    private Event freeList = null;
+
+    private long now = 0;
+    private long nextTime = Long.MAX_VALUE;
+    private int size = 0;
+    private long numEventsScheduled = 0;
+}
@@ -0,0 +1,119 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A ring buffer of processor trace records, written to a binary file when
+ * Nachos exits. Only the most recent records are kept, so tracing even a long
+ * run costs a few array stores per event rather than a line of console
+ * output.
+ *
+ * <p>
+ * The file starts with two big-endian ints, the number of ints in a record
+ * and the number of records that follow. The records are in order from
+ * oldest to newest, and each one is a kind (one of the <tt>record<i>*</i></tt>
+ * constants) followed by three arguments:
+ * <ul>
+ * <li><tt>recordFetch</tt>: PC, physical address, instruction word
+ * <li><tt>recordRead</tt>, <tt>recordWrite</tt>: virtual address, physical
+ * address, value. The size of the access is in bits 8-15 of the kind.
+ * <li><tt>recordException</tt>: cause, PC, bad virtual address
+ * </ul>
+ */
+final class TraceLog {
+    /**
+     * Allocate a new trace log.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the file to write the log to on exit.
+     * @param	numRecords	the number of records to keep.
+     */
+    TraceLog(Privilege privilege, String fileName, int numRecords) {
+	Lib.assertTrue(numRecords > 0);
+
+	this.privilege = privilege;
+	this.file = new File(fileName);
+	this.records = new int[numRecords * recordSize];
+
+	privilege.addExitNotificationHandler(new Runnable() {
+	    public void run() { write(); }
+	});
+    }
+
+    /**
+     * Add a record to the log, overwriting the oldest one if the log is
+     * full.
+     *
+     * @param	kind	the kind of record.
+     * @param	arg0	the first argument.
+     * @param	arg1	the second argument.
+     * @param	arg2	the third argument.
+     */
+    void record(int kind, int arg0, int arg1, int arg2) {
+	records[next] = kind;
+	records[next+1] = arg0;
+	records[next+2] = arg1;
+	records[next+3] = arg2;
+
+	next += recordSize;
+	if (next == records.length) {
+	    next = 0;
+	    wrapped = true;
+	}
+    }
+
+    private void write() {
+	privilege.doPrivileged(new Runnable() {
+	    public void run() { writeFile(); }
+	});
+    }
+
+    private void writeFile() {
+	int start = wrapped ? next : 0;
+	int length = wrapped ? records.length : next;
+
+	try {
+	    DataOutputStream out =
+		new DataOutputStream(new BufferedOutputStream(
+		    new FileOutputStream(file)));
+
+	    out.writeInt(recordSize);
+	    out.writeInt(length / recordSize);
+
+	    for (int i=0; i<length; i++)
+		out.writeInt(records[(start+i) % records.length]);
+
+	    out.close();
+	}
+	catch (IOException e) {
+	    System.out.println("could not write trace log " + file);
+	}
+    }
+
+    /** An instruction fetch. */
+    static final int recordFetch = 0;
+    /** A load from memory. */
+    static final int recordRead = 1;
+    /** A store to memory. */
+    static final int recordWrite = 2;
+    /** An exception raised by the processor. */
+    static final int recordException = 3;
+
+    /** The number of ints in each record. */
+    private static final int recordSize = 4;
+
+    private Privilege privilege;
+    private File file;
+    private int[] records;
+    private int next = 0;
+    private boolean wrapped = false;
+}
@@ -9,6 +9,7 @@ import java.security.Permission;
 import java.io.FilePermission;
 import java.util.PropertyPermission;
 import java.net.NetPermission;
+import java.lang.reflect.ReflectPermission;
 import java.awt.AWTPermission;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedExceptionAction;
@@ -42,10 +43,15 @@ public class NachosSecurityManager extends SecurityManager {
     }
 
     /**
-     * Install this security manager.
+     * Install this security manager, unless this Nachos is one of several
+     * run by <tt>BatchLauncher</tt>, since a JVM has only one security
+     * manager.
      */
     public void enable() {
 	Lib.assertTrue(this != System.getSecurityManager());
+
+	if (BatchLauncher.isBatchRun())
+	    return;
 	
 	doPrivileged(new Runnable() {
 	    public void run() {
@@ -70,6 +76,15 @@ public class NachosSecurityManager extends SecurityManager {
 
 	public void exit(int exitStatus) {
 	    invokeExitNotificationHandlers();
+
+	    // other simulations share the JVM, so only end this one's threads
+	    if (BatchLauncher.isBatchRun()) {
+		BatchLauncher.exitRun(exitStatus);
+		if (tcb != null)
+		    tcb.exitAll();
+		throw new ThreadDeath();
+	    }
+
 	    NachosSecurityManager.this.exit(exitStatus);
 	}
     }
@@ -272,10 +287,48 @@ public class NachosSecurityManager extends SecurityManager {
 	    }
 	}
 
+	// the JVM's virtual thread scheduler starts carrier threads on demand,
+	// from whichever thread happens to need one
+	if (isCarrierThreadPermission(perm) && !isPrivileged() &&
+	    isCreatingCarrierThread())
+	    return;
+
 	// default to requiring privilege
 	verifyPrivilege(perm);
     }
 
+    /**
+     * Test whether the specified permission is one of the permissions that
+     * constructing a carrier thread for virtual threads checks.
+     */
+    private static boolean isCarrierThreadPermission(Permission perm) {
+	String name = perm.getName();
+
+	if (perm instanceof RuntimePermission)
+	    return name.equals("enableContextClassLoaderOverride");
+	else if (perm instanceof ReflectPermission)
+	    return name.equals("suppressAccessChecks");
+	else
+	    return false;
+    }
+
+    /**
+     * Test whether the permission being checked is being checked by the
+     * constructor of a carrier thread for virtual threads.
+     */
+    private static boolean isCreatingCarrierThread() {
+	StackTraceElement[] trace = new Throwable().getStackTrace();
+	for (int i=0; i<trace.length; i++) {
+	    if (trace[i].getClassName().equals(carrierThreadClassName) &&
+		trace[i].getMethodName().equals("<init>"))
+		return true;
+	}
+	return false;
+    }
+
+    private static final String carrierThreadClassName =
+	"jdk.internal.misc.CarrierThread";
+
     /**
      * Called by the <tt>java.lang.Thread</tt> constructor to determine a
      * thread group for a child thread of the current thread. The caller must
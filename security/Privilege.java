@@ -149,6 +149,16 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Create a handle for an interrupt that a device schedules over and
+	 * over. Scheduling it through the handle allocates nothing.
+	 *
+	 * @param	type	a name for the type of interrupt.
+	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle for the interrupt, not yet scheduled.
+	 */
+	public InterruptHandle newInterrupt(String type, Runnable handler);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +168,62 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by several ticks at once, then invoke any
+	 * interrupt handlers that are due. The caller must make sure no
+	 * interrupt falls due before the last of these ticks, so that this has
+	 * the same effect as calling <tt>tick()</tt> once per tick.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the ticks were spent running
+	 *		kernel code, <tt>false</tt> if running MIPS user code.
+	 * @param numTicks	the number of ticks to advance.
+	 */
+	public void tick(boolean inKernelMode, int numTicks);
+
+	/**
+	 * Return the time at which the next pending interrupt is due.
+	 *
+	 * @return	the time of the next interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if none are pending.
+	 */
+	public long nextInterruptTime();
+    }
+
+    /**
+     * An interrupt that can be scheduled, rescheduled and cancelled, obtained
+     * from <tt>InterruptPrivilege.newInterrupt()</tt>. It is pending at most
+     * once at a time.
+     */
+    public interface InterruptHandle {
+	/**
+	 * Schedule the interrupt to occur at some time in the future. If it
+	 * is already pending, it is moved to the new time.
+	 *
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 */
+	public void schedule(long when);
+
+	/**
+	 * Cancel the interrupt, if it is pending.
+	 */
+	public void cancel();
+
+	/**
+	 * Test whether the interrupt is pending.
+	 *
+	 * @return	<tt>true</tt> if the interrupt is scheduled and has not
+	 *		yet occurred.
+	 */
+	public boolean isPending();
+
+	/**
+	 * Return the time at which the interrupt is due.
+	 *
+	 * @return	the time the interrupt is due, if it is pending.
+	 */
+	public long getTime();
     }
 
     /**
@@ -191,5 +257,10 @@ public abstract class Privilege {
 	 * @param	thread	the thread whose TCB is about to be destroyed.
 	 */
 	public void authorizeDestroy(KThread thread);
+	/**
+	 * End the Java thread of every TCB except the current one. Used when
+	 * Nachos exits without exiting the JVM.
+	 */
+	public void exitAll();
     }    
 }
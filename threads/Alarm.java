@@ -21,6 +21,7 @@ public class Alarm {
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
+	tickless = Machine.timer().isTickless();
     }
 
     /**
@@ -28,12 +29,24 @@ public class Alarm {
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
      * that should be run.
+     *
+     * <p>
+     * In tickless mode the timer only interrupts when a sleeping thread is
+     * due or a quantum has run out, and the current thread only yields if
+     * another thread is ready. Either way, the scheduler can let the current
+     * thread keep running if its own time slice is longer than a quantum.
      */
     public void timerInterrupt() {
 	// KThread.currentThread().yield();
     long curTime = Machine.timer().getTime();
     boolean checkStatus = Machine.interrupt().disable();
 
+    // in tickless mode, the current thread can be preempted if its quantum
+    // is over, or if it had none because it was the only thread running
+    if (tickless && quantumEnd <= curTime)
+        quantumEnd = -1;
+    boolean quantumOver = (quantumEnd == -1);
+
     while(!queueWait.isEmpty() && queueWait.peek().wakeTime <= curTime) {
         ThreadTime curThreadTime = queueWait.poll();
         KThread curThread = curThreadTime.thread;
@@ -42,10 +55,53 @@ public class Alarm {
             curThread.ready();
         }
     }
-    KThread.currentThread().yield();
+    if (tickless) {
+        if (quantumOver && KThread.numReadyThreads() > 0) {
+            // start a new quantum for whichever thread runs next
+            quantumEnd = curTime + Stats.TimerTicks;
+            armTimer();
+            if (ThreadedKernel.scheduler.quantumExpired())
+                KThread.yield();
+        }
+        else {
+            armTimer();
+        }
+    }
+    else if (ThreadedKernel.scheduler.quantumExpired()) {
+        KThread.yield();
+    }
     Machine.interrupt().restore(checkStatus);
     }
 
+    /**
+     * Called with interrupts disabled when a thread other than the current
+     * one is made ready. In tickless mode, starts a quantum so that the
+     * current thread will be preempted.
+     */
+    void threadReady() {
+        if (!tickless || quantumEnd != -1)
+            return;
+        quantumEnd = Machine.timer().getTime() + Stats.TimerTicks;
+        armTimer();
+    }
+
+    /**
+     * Set the timer for the earliest of the next wake time and the end of the
+     * current quantum, or stop it if there is neither. Interrupts must be
+     * disabled.
+     */
+    private void armTimer() {
+        long time = quantumEnd;
+        if (!queueWait.isEmpty() &&
+            (time == -1 || queueWait.peek().wakeTime < time))
+            time = queueWait.peek().wakeTime;
+
+        if (time == -1)
+            Machine.timer().cancelInterrupt();
+        else
+            Machine.timer().setInterrupt(time);
+    }
+
 
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
@@ -68,6 +124,8 @@ public class Alarm {
         KThread thread = KThread.currentThread();
         ThreadTime curThreadTime = new ThreadTime(thread, wakeTime);
         queueWait.add(curThreadTime);
+        if (tickless && queueWait.peek() == curThreadTime)
+            armTimer();
         thread.sleep();
         Machine.interrupt().restore(checkStatus);
     }
@@ -93,7 +151,9 @@ public class Alarm {
     }
 
     public static void selfTest(){
-		Alarm alarm = new Alarm();
+		// a second alarm would take over the timer from the kernel's
+		Alarm alarm = (ThreadedKernel.alarm != null) ? ThreadedKernel.alarm
+							     : new Alarm();
         System.out.println("\n------------------Alarm Testing------------------------\n");
     	long wakeTime = Machine.timer().getTime();
     	alarm.waitUntil(-4);
@@ -113,4 +173,7 @@ public class Alarm {
     }
 
     private PriorityQueue<ThreadTime> queueWait = new PriorityQueue<ThreadTime>();
+    private boolean tickless;
+    /** The time the current quantum ends, or -1 if none is running. */
+    private long quantumEnd = -1;
 }
\ No newline at end of file
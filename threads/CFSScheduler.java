@@ -0,0 +1,280 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler, which shares the processor among threads in
+ * proportion to their weights.
+ *
+ * <p>
+ * Each thread has a virtual runtime: the ticks it has run, scaled down by its
+ * weight. The next thread to be dequeued is always the waiting thread with
+ * the least virtual runtime, so a thread that ran in short bursts before
+ * blocking or yielding gets as much of the processor as a thread that never
+ * stops. A thread that was preempted is only charged for the ticks it
+ * actually ran, unlike a round-robin scheduler, which charges every turn
+ * the same.
+ *
+ * <p>
+ * The weight of a thread is derived from its priority, which ranges like that
+ * of a <tt>PriorityScheduler</tt>. Each priority above the default makes the
+ * weight 25% larger, each one below 20% smaller. Virtual runtime is in ticks
+ * at the default priority.
+ *
+ * <p>
+ * A thread that starts waiting on a queue has its virtual runtime raised to
+ * no less than one timer period below the least virtual runtime that queue
+ * has dispatched, so a thread that slept long can not hold the processor to
+ * catch up, but still runs soon after it wakes.
+ */
+public class CFSScheduler extends Scheduler {
+    /**
+     * Allocate a new CFS scheduler.
+     */
+    public CFSScheduler() {
+    }
+    
+    /**
+     * Allocate a new thread queue ordered by virtual runtime.
+     *
+     * @param	transferPriority	ignored. Threads do not lend each other
+     *					their weights.
+     * @return	a new thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return getThreadState(thread).priority;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+	
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Charge the current thread for the ticks it ran since it was dispatched
+     * or last charged.
+     *
+     * @return	<tt>true</tt> if a waiting thread has run less, in virtual
+     *		time, than the current thread.
+     */
+    public boolean quantumExpired() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(KThread.currentThread());
+
+	// a thread that was not dispatched from a queue is not charged
+	if (state.queue == null)
+	    return true;
+
+	state.charge(Machine.timer().getTime());
+
+	return !state.queue.threads.isEmpty() &&
+	    state.queue.threads.first().vruntime < state.vruntime;
+    }
+
+    /**
+     * The default priority for a new thread.
+     */
+    public static final int priorityDefault = PriorityScheduler.priorityDefault;
+    /**
+     * The minimum priority that a thread can have.
+     */
+    public static final int priorityMinimum = PriorityScheduler.priorityMinimum;
+    /**
+     * The maximum priority that a thread can have.
+     */
+    public static final int priorityMaximum = PriorityScheduler.priorityMaximum;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    private ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> kept in a red-black tree (a <tt>TreeSet</tt>)
+     * ordered by virtual runtime, then by the order threads were created.
+     */
+    private class FairQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitQueue == null);
+
+	    if (thread == KThread.currentThread() && state.queue != null)
+		state.charge(Machine.timer().getTime());
+
+	    long floor = minVruntime - Stats.TimerTicks;
+	    if (state.vruntime < floor)
+		state.vruntime = floor;
+
+	    state.waitQueue = this;
+	    threads.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = threads.pollFirst();
+	    if (state == null)
+		return null;
+
+	    state.waitQueue = null;
+	    if (state.vruntime > minVruntime)
+		minVruntime = state.vruntime;
+
+	    state.queue = this;
+	    state.runStart = Machine.timer().getTime();
+
+	    return state.thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(threads.isEmpty());
+	}
+
+	/**
+	 * Print out the contents of the queue, least virtual runtime first.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=threads.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " (" + state.vruntime + ") ");
+	    }
+	}
+
+	TreeSet<ThreadState> threads = new TreeSet<ThreadState>();
+	/** The greatest virtual runtime of a thread dispatched so far. */
+	long minVruntime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its weight and virtual runtime.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    private class ThreadState implements Comparable<ThreadState> {
+	ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.id = numThreadStates++;
+	}
+
+	/**
+	 * Change the priority, and so the weight, of the associated thread. A
+	 * waiting thread keeps its virtual runtime and place.
+	 */
+	void setPriority(int priority) {
+	    this.priority = priority;
+	}
+
+	/**
+	 * Add the ticks the associated thread ran until the specified time,
+	 * scaled by its weight, to its virtual runtime. The thread must not
+	 * be waiting on a queue, which is ordered by virtual runtime.
+	 */
+	void charge(long time) {
+	    Lib.assertTrue(waitQueue == null);
+
+	    vruntime += (time - runStart) * weights[priorityDefault - priorityMinimum]
+		/ weights[priority - priorityMinimum];
+	    runStart = time;
+	}
+
+	public int compareTo(ThreadState other) {
+	    if (vruntime != other.vruntime)
+		return (vruntime < other.vruntime) ? -1 : 1;
+	    else
+		return (id < other.id) ? -1 : (id > other.id ? 1 : 0);
+	}
+
+	KThread thread;
+	int priority = priorityDefault;
+	long vruntime = 0;
+	/** The time the associated thread was dispatched or last charged. */
+	long runStart = 0;
+	/** The queue the associated thread was last dequeued from. */
+	FairQueue queue = null;
+	/** The queue the associated thread is waiting on, if any. */
+	FairQueue waitQueue = null;
+	private long id;
+    }
+
+    private long numThreadStates = 0;
+
+    /**
+     * The weight of each priority. Each step changes the weight by 25%.
+     */
+    private static final long[] weights =
+	new long[priorityMaximum - priorityMinimum + 1];
+
+    static {
+	for (int priority=priorityMinimum; priority<=priorityMaximum; priority++) {
+	    weights[priority - priorityMinimum] =
+		Math.round(1024 * Math.pow(1.25, priority - priorityDefault));
+	}
+    }
+}
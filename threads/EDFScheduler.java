@@ -0,0 +1,413 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+/**
+ * An earliest-deadline-first scheduler for periodic real-time threads.
+ *
+ * <p>
+ * A thread can reserve a budget of ticks in every period of a fixed number
+ * of ticks with <tt>setReservation()</tt>. A reservation is only admitted if
+ * the sum of the budget to period ratios of all reservations stays within
+ * the utilization set by the <tt>nachos.conf</tt> key
+ * <tt>EDFScheduler.maxUtilization</tt> (1.0 by default). The deadline of a
+ * thread's current job is the end of its current period, and the next thread
+ * to be dequeued is always the thread with the earliest deadline that still
+ * has budget left in its period. Threads without a reservation, and threads
+ * that used up their budget, wait behind these in FIFO order, as in a
+ * round-robin scheduler. A thread that used up its budget gets a full budget
+ * again when its next period starts.
+ *
+ * <p>
+ * A job is done when its thread calls <tt>waitForNextPeriod()</tt> or blocks
+ * on a queue, and a new job starts when the thread is made ready again.
+ * Every deadline that passes while a job is not done is reported to the
+ * autograder with <tt>missedDeadline()</tt>, which counts it in
+ * <tt>Stats</tt>.
+ *
+ * <p>
+ * Budgets are charged, and the current thread preempted, at timer
+ * interrupts, so they are enforced to within a timer period.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+	maxUtilization = Config.getDouble("EDFScheduler.maxUtilization", 1.0);
+	Lib.assertTrue(maxUtilization > 0);
+    }
+
+    /**
+     * Allocate a new thread queue ordered by deadline.
+     *
+     * @param	transferPriority	ignored. Threads do not lend each other
+     *					their deadlines.
+     * @return	a new thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue();
+    }
+
+    /**
+     * Reserve a budget of ticks in every period for the specified thread,
+     * replacing any reservation it already has. The thread's first period
+     * starts now. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread.
+     * @param	period	the length of each period, in ticks.
+     * @param	budget	the ticks the thread may run in each period.
+     * @return	<tt>true</tt> if the reservation was admitted, or
+     *		<tt>false</tt> if it would exceed the maximum utilization.
+     */
+    public boolean setReservation(KThread thread, long period, long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(budget > 0 && period >= budget);
+
+	ThreadState state = getThreadState(thread);
+	double newUtilization = utilization - state.getUtilization()
+	    + (double) budget / period;
+	// allow for rounding in the sum of the ratios
+	if (newUtilization > maxUtilization + 1e-9)
+	    return false;
+
+	DeadlineQueue waitQueue = state.waitQueue;
+	if (waitQueue != null)
+	    waitQueue.remove(state);
+
+	if (state.period == 0)
+	    numReservations++;
+	utilization = newUtilization;
+
+	long time = Machine.timer().getTime();
+	state.charge(time);
+	state.period = period;
+	state.budget = budget;
+	state.remaining = budget;
+	state.release = time;
+	state.jobDone = false;
+
+	if (waitQueue != null)
+	    waitQueue.add(state);
+
+	return true;
+    }
+
+    /**
+     * Cancel the reservation of the specified thread, if it has one. A thread
+     * with a reservation should cancel it before it finishes. Must be called
+     * with interrupts disabled.
+     *
+     * @param	thread	the thread.
+     */
+    public void clearReservation(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	if (state.period == 0)
+	    return;
+
+	DeadlineQueue waitQueue = state.waitQueue;
+	if (waitQueue != null)
+	    waitQueue.remove(state);
+
+	utilization -= state.getUtilization();
+	state.period = 0;
+	if (--numReservations == 0)
+	    utilization = 0;
+
+	if (waitQueue != null)
+	    waitQueue.add(state);
+    }
+
+    /**
+     * Return the sum of the budget to period ratios of all reservations.
+     *
+     * @return	the utilization reserved by real-time threads.
+     */
+    public double getUtilization() {
+	return utilization;
+    }
+
+    /**
+     * End the current job of the current thread, which must have a
+     * reservation, and sleep until its next period starts.
+     */
+    public void waitForNextPeriod() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	Lib.assertTrue(state.period != 0);
+
+	long time = Machine.timer().getTime();
+	state.charge(time);
+	state.refresh(time);
+	state.jobDone = true;
+	long wait = state.release + state.period - time;
+
+	Machine.interrupt().restore(intStatus);
+
+	ThreadedKernel.alarm.waitUntil(wait);
+    }
+
+    /**
+     * Charge the current thread for the ticks it ran, and start its next
+     * period if its deadline passed.
+     *
+     * @return	<tt>true</tt> if the current thread has no budget left or no
+     *		reservation, or a thread with an earlier deadline is waiting.
+     */
+    public boolean quantumExpired() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(KThread.currentThread());
+
+	// a thread that was not dispatched from a queue is not charged
+	if (state.queue == null)
+	    return true;
+
+	long time = Machine.timer().getTime();
+	state.charge(time);
+	state.refresh(time);
+
+	if (!state.isRealTime())
+	    return true;
+
+	ThreadState first = state.queue.firstRealTime(time);
+	return first != null && first.getDeadline() < state.getDeadline();
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    private ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> of real-time threads ordered by deadline, in a
+     * <tt>TreeSet</tt>, followed by a FIFO list of the other threads, and
+     * then the threads waiting for their budget, ordered by the time it is
+     * renewed.
+     */
+    private class DeadlineQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    long time = Machine.timer().getTime();
+
+	    if (thread == KThread.currentThread()) {
+		state.charge(time);
+
+		// blocking, rather than yielding, ends the current job
+		if (this != state.queue)
+		    state.jobDone = true;
+	    }
+	    else {
+		// being woken up starts a new job
+		state.refresh(time);
+		state.jobDone = false;
+	    }
+
+	    add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    long time = Machine.timer().getTime();
+
+	    ThreadState state = firstRealTime(time);
+	    if (state != null)
+		realTime.remove(state);
+	    else if (!others.isEmpty())
+		state = others.removeFirst();
+	    else if (!throttled.isEmpty())
+		state = throttled.pollFirst();
+	    else
+		return null;
+
+	    state.waitQueue = null;
+	    state.queue = this;
+	    state.runStart = time;
+
+	    return state.thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(realTime.isEmpty() && others.isEmpty() &&
+			   throttled.isEmpty());
+	}
+
+	/**
+	 * Print out the contents of the queue, in the order they would be
+	 * dequeued now.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=realTime.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " (" + state.getDeadline() + ") ");
+	    }
+	    for (Iterator<ThreadState> i=others.iterator(); i.hasNext(); )
+		System.out.print(i.next().thread + " ");
+	    for (Iterator<ThreadState> i=throttled.iterator(); i.hasNext(); )
+		System.out.print(i.next().thread + " (throttled) ");
+	}
+
+	/**
+	 * Return the waiting real-time thread with the earliest deadline that
+	 * is still to come, after starting the next period of every waiting
+	 * thread whose deadline passed.
+	 *
+	 * @param	time	the current time.
+	 * @return	the thread, or <tt>null</tt> if no real-time thread with
+	 *		budget left is waiting.
+	 */
+	ThreadState firstRealTime(long time) {
+	    while (!throttled.isEmpty() &&
+		   throttled.first().getDeadline() <= time) {
+		ThreadState state = throttled.pollFirst();
+		state.refresh(time);
+		add(state);
+	    }
+
+	    while (!realTime.isEmpty() &&
+		   realTime.first().getDeadline() <= time) {
+		ThreadState state = realTime.pollFirst();
+		state.refresh(time);
+		add(state);
+	    }
+
+	    return realTime.isEmpty() ? null : realTime.first();
+	}
+
+	void add(ThreadState state) {
+	    state.waitQueue = this;
+
+	    if (state.isRealTime())
+		realTime.add(state);
+	    else if (state.period != 0)
+		throttled.add(state);
+	    else
+		others.add(state);
+	}
+
+	void remove(ThreadState state) {
+	    Lib.assertTrue(state.waitQueue == this);
+
+	    if (!realTime.remove(state) && !throttled.remove(state))
+		Lib.assertTrue(others.remove(state));
+	    state.waitQueue = null;
+	}
+
+	private TreeSet<ThreadState> realTime = new TreeSet<ThreadState>();
+	private LinkedList<ThreadState> others = new LinkedList<ThreadState>();
+	private TreeSet<ThreadState> throttled = new TreeSet<ThreadState>();
+    }
+
+    /**
+     * The scheduling state of a thread: its reservation, if any, and the
+     * state of its current period.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    private class ThreadState implements Comparable<ThreadState> {
+	ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.id = numThreadStates++;
+	}
+
+	boolean isRealTime() {
+	    return period != 0 && remaining > 0;
+	}
+
+	double getUtilization() {
+	    return (period == 0) ? 0 : (double) budget / period;
+	}
+
+	long getDeadline() {
+	    return release + period;
+	}
+
+	/**
+	 * Charge the budget for the ticks the associated thread ran until the
+	 * specified time.
+	 */
+	void charge(long time) {
+	    if (period != 0)
+		remaining -= time - runStart;
+	    runStart = time;
+	}
+
+	/**
+	 * If the deadline passed, start the period the specified time is in,
+	 * with a full budget. Each deadline passed with the job not done is a
+	 * miss. The associated thread must not be in a queue, which is
+	 * ordered by deadline.
+	 */
+	void refresh(long time) {
+	    if (period == 0 || time < getDeadline())
+		return;
+
+	    long periods = (time - release) / period;
+	    if (!jobDone) {
+		for (long i=0; i<periods; i++)
+		    Machine.autoGrader().missedDeadline(thread);
+	    }
+
+	    release += periods * period;
+	    remaining = budget;
+	}
+
+	public int compareTo(ThreadState other) {
+	    long deadline = getDeadline(), otherDeadline = other.getDeadline();
+	    if (deadline != otherDeadline)
+		return (deadline < otherDeadline) ? -1 : 1;
+	    else
+		return (id < other.id) ? -1 : (id > other.id ? 1 : 0);
+	}
+
+	KThread thread;
+	/** The length of each period, or 0 if there is no reservation. */
+	long period = 0;
+	long budget = 0;
+	/** The budget left in the current period. */
+	long remaining = 0;
+	/** The time the current period started. */
+	long release = 0;
+	/** Set once the job of the current period is done. */
+	boolean jobDone = false;
+	/** The time the associated thread was dispatched or last charged. */
+	long runStart = 0;
+	/** The queue the associated thread was last dequeued from. */
+	DeadlineQueue queue = null;
+	/** The queue the associated thread is waiting on, if any. */
+	DeadlineQueue waitQueue = null;
+	private long id;
+    }
+
+    private double maxUtilization;
+    private double utilization = 0;
+    private int numReservations = 0;
+    private long numThreadStates = 0;
+}
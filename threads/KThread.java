@@ -263,8 +263,14 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    numReadyThreads++;
+
+	    // a thread yielding to itself does not need to be preempted
+	    if (this != currentThread && ThreadedKernel.alarm != null)
+		ThreadedKernel.alarm.threadReady();
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
@@ -298,7 +304,12 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    Machine.interrupt().idle();
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -307,6 +318,16 @@ public class KThread {
 	idleThread.fork();
     }
     
+    /**
+     * Return the number of threads on the ready queue, not counting the
+     * current thread or the idle thread.
+     *
+     * @return	the number of threads waiting to run.
+     */
+    static int numReadyThreads() {
+	return numReadyThreads;
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
@@ -315,6 +336,8 @@ public class KThread {
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else
+	    numReadyThreads--;
 
 	nextThread.run();
     }
@@ -471,6 +494,7 @@ public class KThread {
     private int id = numCreated++;
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
+    private static int numReadyThreads = 0;
 
     private static ThreadQueue readyQueue = null;
     private static ThreadQueue taskQueue = null;
@@ -2,8 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
 import java.util.Iterator;
 
 /**
@@ -42,7 +40,255 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+	
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have, and the most
+     * tickets a thread can hold with the tickets transferred to it.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its threads.
+     *
+     * <p>
+     * Each waiting thread has a slot in a Fenwick tree of the ticket counts,
+     * so both changing the tickets of a thread and finding the thread that
+     * holds a ticket take O(log n). Slots of threads that leave the queue are
+     * reused.
+     */
+    protected class LotteryQueue extends PriorityQueue {
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads. Every call holds a new
+	 * lottery.
+	 *
+	 * @return	the thread that holds the winning ticket.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    long ticket;
+	    if (total <= Integer.MAX_VALUE)
+		ticket = Lib.random((int) total);
+	    else
+		ticket = Math.min((long) (Lib.random() * total), total-1);
+
+	    // descend the tree to the slot whose prefix sum exceeds the ticket
+	    int slot = 0;
+	    for (int step=Integer.highestOneBit(capacity); step>0; step>>=1) {
+		if (slot+step <= capacity && tree[slot+step] <= ticket) {
+		    slot += step;
+		    ticket -= tree[slot];
+		}
+	    }
+
+	    Lib.assertTrue(threads[slot] != null);
+	    return threads[slot];
+	}
+
+	/**
+	 * Return the total tickets of the waiting threads, which is what the
+	 * queue transfers to its owner.
+	 *
+	 * @return	the total tickets of the waiting threads, at most
+	 *		<tt>priorityMaximum</tt>.
+	 */
+	protected int getDonation() {
+	    return (int) Math.min(total, priorityMaximum);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int slot=0; slot<capacity; slot++) {
+		if (threads[slot] != null) {
+		    System.out.print(threads[slot].thread + " (" +
+				     threads[slot].tickets + ") ");
+		}
+	    }
+	    System.out.println();
+	}
+
+	void add(ThreadState state) {
+	    LotteryThreadState lotteryState = (LotteryThreadState) state;
+
+	    if (numFreeSlots == 0)
+		grow();
+
+	    int slot = freeSlots[--numFreeSlots];
+	    threads[slot] = lotteryState;
+	    lotteryState.slot = slot;
+	    lotteryState.tickets = 0;
+	    size++;
+
+	    update(lotteryState);
+	}
+
+	void remove(ThreadState state) {
+	    LotteryThreadState lotteryState = (LotteryThreadState) state;
+	    int slot = lotteryState.slot;
+	    Lib.assertTrue(threads[slot] == lotteryState);
+
+	    adjust(slot, -lotteryState.tickets);
+	    threads[slot] = null;
+	    lotteryState.slot = -1;
+	    size--;
+
+	    freeSlots[numFreeSlots++] = slot;
+	}
+
+	void update(ThreadState state) {
+	    LotteryThreadState lotteryState = (LotteryThreadState) state;
+
+	    int tickets = lotteryState.getEffectivePriority();
+	    adjust(lotteryState.slot, tickets - lotteryState.tickets);
+	    lotteryState.tickets = tickets;
+	}
+
+	/**
+	 * Add to the tickets in a slot.
+	 */
+	private void adjust(int slot, long delta) {
+	    total += delta;
+	    for (int i=slot+1; i<=capacity; i+=i&(-i))
+		tree[i] += delta;
+	}
+
+	/**
+	 * Double the number of slots. The new slots are empty, so the tree
+	 * for them only needs the sums of the old slots they cover.
+	 */
+	private void grow() {
+	    int oldCapacity = capacity;
+	    capacity = (oldCapacity == 0) ? 4 : oldCapacity*2;
+
+	    LotteryThreadState[] newThreads = new LotteryThreadState[capacity];
+	    System.arraycopy(threads, 0, newThreads, 0, oldCapacity);
+	    threads = newThreads;
+
+	    long[] newTree = new long[capacity+1];
+	    System.arraycopy(tree, 0, newTree, 0, oldCapacity+1);
+	    for (int i=oldCapacity+1; i<=capacity; i++) {
+		// node i covers slots (i - lowbit(i), i]
+		int low = i - (i&(-i));
+		if (low < oldCapacity)
+		    newTree[i] = prefixSum(oldCapacity) - prefixSum(low);
+	    }
+	    tree = newTree;
+
+	    int[] newFreeSlots = new int[capacity];
+	    System.arraycopy(freeSlots, 0, newFreeSlots, 0, numFreeSlots);
+	    for (int slot=capacity-1; slot>=oldCapacity; slot--)
+		newFreeSlots[numFreeSlots++] = slot;
+	    freeSlots = newFreeSlots;
+	}
+
+	/**
+	 * Return the total tickets in the first <i>n</i> slots.
+	 */
+	private long prefixSum(int n) {
+	    long sum = 0;
+	    for (int i=n; i>0; i-=i&(-i))
+		sum += tree[i];
+	    return sum;
+	}
+
+	private LotteryThreadState[] threads = new LotteryThreadState[0];
+	/** The Fenwick tree of ticket counts, indexed from 1. */
+	private long[] tree = new long[1];
+	private int[] freeSlots = new int[0];
+	private int numFreeSlots = 0;
+	private int capacity = 0;
+	private int size = 0;
+	private long total = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler. Its effective
+     * priority is its own tickets plus every ticket transferred to it.
+     */
+    protected class LotteryThreadState extends ThreadState {
+	/**
+	 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+	 * with the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Compute the effective priority from the tickets of this thread and
+	 * the tickets transferred by the owned queues.
+	 *
+	 * @return	the sum of the tickets, at most
+	 *		<tt>priorityMaximum</tt>.
+	 */
+	protected int computeEffectivePriority() {
+	    long sum = priority;
+	    for (Iterator<PriorityQueue> i=owned.iterator(); i.hasNext(); )
+		sum += i.next().getDonation();
+	    return (int) Math.min(sum, priorityMaximum);
+	}
+
+	/** The slot of the associated thread in the queue it waits on. */
+	private int slot = -1;
+	/** The tickets counted for the associated thread in that slot. */
+	private int tickets = 0;
     }
 }
@@ -0,0 +1,270 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Threads are kept at one of several levels, and the next thread to be
+ * dequeued is always the thread that has waited longest at the highest level
+ * (level 0). A new thread starts at the highest level. A thread that uses up
+ * the time slice of its level, whether all at once or in pieces between
+ * blocking, moves down a level, where the time slice is twice as long. So
+ * threads that mostly wait for I/O stay at the top and run soon after they
+ * wake up, while threads that compute share the time that is left. Every so
+ * often, every thread is moved back to the highest level, so that no thread
+ * starves.
+ *
+ * <p>
+ * The number of levels, the time slice of the highest level and the time
+ * between boosts, both in ticks, are set by the <tt>nachos.conf</tt> keys
+ * <tt>MLFQScheduler.levels</tt>, <tt>MLFQScheduler.quantum</tt> and
+ * <tt>MLFQScheduler.boostInterval</tt>. Time slices are measured at timer
+ * interrupts, so they are rounded to the nearest whole number of timer
+ * periods.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+	quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  20*Stats.TimerTicks);
+
+	Lib.assertTrue(numLevels >= 1 && numLevels <= maxLevels,
+		       "MLFQScheduler.levels must be between 1 and " +
+		       maxLevels);
+	Lib.assertTrue(quantum > 0 && boostInterval > 0);
+
+	nextBoost = boostInterval;
+    }
+    
+    /**
+     * Allocate a new MLFQ thread queue.
+     *
+     * @param	transferPriority	ignored. Threads do not lend each other
+     *					their levels.
+     * @return	a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQQueue();
+    }
+
+    /**
+     * Charge the current thread for the time it ran since it was last
+     * dispatched or charged. If that uses up the time slice of its level,
+     * move it down a level. Also boost every thread back to the highest level
+     * if it is time to.
+     *
+     * @return	<tt>true</tt> if the current thread used up its time slice,
+     *		or a thread at a higher level is waiting to run.
+     */
+    public boolean quantumExpired() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	if (time >= nextBoost) {
+	    boostEpoch++;
+	    nextBoost = time + boostInterval;
+	}
+
+	ThreadState state = getThreadState(KThread.currentThread());
+
+	// a thread that was not dispatched from a queue gets no time slice
+	if (state.queue == null)
+	    return true;
+
+	// timer interrupts are not exactly periodic, so round to the nearest
+	state.charge(time);
+	if (state.used >= ((long) quantum << state.level) - Stats.TimerTicks/2) {
+	    if (state.level < numLevels-1)
+		state.level++;
+	    state.used = 0;
+	    return true;
+	}
+
+	return state.queue.highestLevel() < state.level;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    private ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with a FIFO deque for each level, and a bit set
+     * of the levels that are not empty, so that adding and removing a thread
+     * both take constant time.
+     *
+     * <p>
+     * A boost is applied to a queue the next time it is used, by appending
+     * every lower level to level 0 in order.
+     */
+    private class MLFQQueue extends ThreadQueue {
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	MLFQQueue() {
+	    levels = new ArrayDeque[numLevels];
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (thread == KThread.currentThread() && state.queue != null)
+		state.charge(Machine.timer().getTime());
+
+	    rebalance();
+
+	    int level = state.getLevel();
+	    if (levels[level] == null)
+		levels[level] = new ArrayDeque<KThread>();
+	    levels[level].addLast(thread);
+	    nonEmpty |= 1 << level;
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    rebalance();
+	    if (nonEmpty == 0)
+		return null;
+
+	    int level = Integer.numberOfTrailingZeros(nonEmpty);
+	    KThread thread = levels[level].removeFirst();
+	    if (levels[level].isEmpty())
+		nonEmpty &= ~(1 << level);
+
+	    ThreadState state = getThreadState(thread);
+	    state.queue = this;
+	    state.runStart = Machine.timer().getTime();
+
+	    return thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    rebalance();
+	    Lib.assertTrue(nonEmpty == 0);
+	}
+
+	/**
+	 * Print out the contents of the queue, highest level first.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    rebalance();
+	    for (int level=0; level<numLevels; level++) {
+		if (levels[level] == null)
+		    continue;
+
+		for (Iterator<KThread> i=levels[level].iterator(); i.hasNext(); )
+		    System.out.print(i.next() + " (" + level + ") ");
+	    }
+	}
+
+	/**
+	 * Return the highest level at which a thread is waiting.
+	 *
+	 * @return	the level, or <tt>numLevels</tt> if no thread is waiting.
+	 */
+	int highestLevel() {
+	    rebalance();
+	    return (nonEmpty == 0) ? numLevels :
+		Integer.numberOfTrailingZeros(nonEmpty);
+	}
+
+	/**
+	 * Apply any boost since this queue was last used.
+	 */
+	private void rebalance() {
+	    if (epoch == boostEpoch)
+		return;
+
+	    epoch = boostEpoch;
+	    if ((nonEmpty & ~1) == 0)
+		return;
+
+	    if (levels[0] == null)
+		levels[0] = new ArrayDeque<KThread>();
+	    for (int level=1; level<numLevels; level++) {
+		if (levels[level] != null) {
+		    levels[0].addAll(levels[level]);
+		    levels[level].clear();
+		}
+	    }
+	    nonEmpty = 1;
+	}
+
+	private ArrayDeque<KThread>[] levels;
+	private int nonEmpty = 0;
+	private int epoch = boostEpoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of the time
+     * slice of that level it has used.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    private class ThreadState {
+	/**
+	 * Return the level of the associated thread, moving it to the highest
+	 * level first if there was a boost since it was last used.
+	 */
+	int getLevel() {
+	    if (epoch != boostEpoch) {
+		epoch = boostEpoch;
+		level = 0;
+		used = 0;
+	    }
+	    return level;
+	}
+
+	/**
+	 * Charge the associated thread for running until the specified time.
+	 */
+	void charge(long time) {
+	    getLevel();
+	    used += time - runStart;
+	    runStart = time;
+	}
+
+	int level = 0;
+	long used = 0;
+	/** The time the associated thread was dispatched or last charged. */
+	long runStart = 0;
+	/** The queue the associated thread was last dequeued from. */
+	MLFQQueue queue = null;
+	private int epoch = boostEpoch;
+    }
+
+    private int numLevels;
+    private int quantum;
+    private int boostInterval;
+    private long nextBoost;
+    /** Counts boosts, so that queues and threads can apply them lazily. */
+    private int boostEpoch = 0;
+
+    private static final int maxLevels = 31;
+}
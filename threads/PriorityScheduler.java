@@ -2,7 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
 
@@ -124,6 +123,13 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * The waiting threads are kept in a binary heap ordered by effective
+     * priority, then by the order in which they started waiting. Each thread
+     * records its index in the heap of the queue it waits on, so a thread
+     * whose effective priority changes is moved in O(log n) without
+     * searching for it.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +148,18 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		release();
+		return null;
+	    }
+
+	    remove(next);
+	    next.waitQueue = null;
+	    next.acquire(this);
+
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +170,129 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    return (size > 0) ? heap[0] : null;
+	}
+
+	/**
+	 * Return the highest effective priority of the threads waiting on this
+	 * queue, which is what the queue donates to its owner.
+	 *
+	 * @return	the highest effective priority of a waiting thread, or
+	 *		<tt>priorityMinimum</tt> if no thread is waiting.
+	 */
+	protected int getDonation() {
+	    return (size > 0) ? heap[0].effectivePriority : priorityMinimum;
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int i=0; i<size; i++) {
+		System.out.print(heap[i].thread + " (" +
+				 heap[i].effectivePriority + ") ");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Add a thread to the heap.
+	 */
+	void add(ThreadState state) {
+	    if (size == heap.length) {
+		ThreadState[] newHeap = new ThreadState[size*2];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    state.waitOrder = numWaited++;
+	    state.heapIndex = size;
+	    heap[size++] = state;
+	    siftUp(state.heapIndex);
+	}
+
+	/**
+	 * Remove a thread from the heap.
+	 */
+	void remove(ThreadState state) {
+	    int i = state.heapIndex;
+	    Lib.assertTrue(heap[i] == state);
+
+	    state.heapIndex = -1;
+	    size--;
+	    if (i == size) {
+		heap[size] = null;
+		return;
+	    }
+
+	    ThreadState moved = heap[size];
+	    heap[size] = null;
+	    heap[i] = moved;
+	    moved.heapIndex = i;
+	    update(moved);
+	}
+
+	/**
+	 * Restore the heap order after the effective priority of a waiting
+	 * thread changed.
+	 */
+	void update(ThreadState state) {
+	    siftUp(state.heapIndex);
+	    siftDown(state.heapIndex);
+	}
+
+	/**
+	 * Give up ownership of this queue, taking back the priority it
+	 * donated.
+	 */
+	void release() {
+	    if (owner == null)
+		return;
+
+	    ThreadState oldOwner = owner;
+	    owner = null;
+	    oldOwner.owned.remove(this);
+	    oldOwner.updateEffectivePriority();
+	}
+
+	private boolean before(ThreadState a, ThreadState b) {
+	    if (a.effectivePriority != b.effectivePriority)
+		return a.effectivePriority > b.effectivePriority;
+	    else
+		return a.waitOrder < b.waitOrder;
+	}
+
+	private void siftUp(int i) {
+	    ThreadState state = heap[i];
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!before(state, heap[parent]))
+		    break;
+
+		heap[i] = heap[parent];
+		heap[i].heapIndex = i;
+		i = parent;
+	    }
+	    heap[i] = state;
+	    state.heapIndex = i;
+	}
+
+	private void siftDown(int i) {
+	    ThreadState state = heap[i];
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+
+		heap[i] = heap[child];
+		heap[i].heapIndex = i;
+		i = child;
+	    }
+	    heap[i] = state;
+	    state.heapIndex = i;
 	}
 
 	/**
@@ -168,6 +300,13 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that last acquired this queue, if it transfers. */
+	protected ThreadState owner = null;
+
+	private ThreadState[] heap = new ThreadState[4];
+	private int size = 0;
+	private long numWaited = 0;
     }
 
     /**
@@ -175,6 +314,11 @@ public class PriorityScheduler extends Scheduler {
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * <p>
+     * The effective priority is cached, and recomputed only when the priority
+     * or a donation to this thread changes. A change is passed on along the
+     * chain of owners only as far as it changes their effective priority.
+     *
      * @see	nachos.threads.KThread#schedulingState
      */
     protected class ThreadState {
@@ -205,8 +349,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +363,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +379,13 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    this.waitQueue = waitQueue;
+	    waitQueue.add(this);
+
+	    if (waitQueue.transferPriority && waitQueue.owner != null)
+		waitQueue.owner.updateEffectivePriority();
 	}
 
 	/**
@@ -250,12 +399,64 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    if (!waitQueue.transferPriority)
+		return;
+
+	    waitQueue.release();
+
+	    waitQueue.owner = this;
+	    owned.add(waitQueue);
+	    updateEffectivePriority();
 	}	
 
+	/**
+	 * Compute the effective priority from the priority and the donations
+	 * of the owned queues.
+	 *
+	 * @return	the highest of the priority and the donations.
+	 */
+	protected int computeEffectivePriority() {
+	    int newPriority = priority;
+	    for (Iterator<PriorityQueue> i=owned.iterator(); i.hasNext(); ) {
+		int donation = i.next().getDonation();
+		if (donation > newPriority)
+		    newPriority = donation;
+	    }
+	    return newPriority;
+	}
+
+	/**
+	 * Recompute the effective priority, and if it changed, move this
+	 * thread in the queue it waits on and pass the change on to that
+	 * queue's owner.
+	 */
+	protected void updateEffectivePriority() {
+	    int newPriority = computeEffectivePriority();
+	    if (newPriority == effectivePriority)
+		return;
+
+	    effectivePriority = newPriority;
+
+	    if (waitQueue != null) {
+		waitQueue.update(this);
+
+		if (waitQueue.transferPriority && waitQueue.owner != null)
+		    waitQueue.owner.updateEffectivePriority();
+	    }
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority;
+	/** The queue the associated thread is waiting on, if any. */
+	protected PriorityQueue waitQueue = null;
+	/** The queues that transfer priority to the associated thread. */
+	protected HashSet<PriorityQueue> owned = new HashSet<PriorityQueue>();
+
+	private int heapIndex = -1;
+	private long waitOrder;
     }
 }
@@ -143,6 +143,20 @@ public abstract class Scheduler {
 	return false;
     }
 
+    /**
+     * Called by the timer interrupt handler, with interrupts disabled, to
+     * decide whether the current thread has used up its time slice. A
+     * scheduler that gives threads longer time slices can charge the current
+     * thread for the time it ran and return <tt>false</tt> to let it keep
+     * running.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean quantumExpired() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return true;
+    }
+
     /**
      * If possible, lower the priority of the current thread user in some
      * scheduler-dependent way, preferably by the same amount as would a call
@@ -205,11 +205,60 @@ public class UserKernel extends ThreadedKernel {
 	UserProcess process = UserProcess.newUserProcess();
 	rootProcess = process;	
 	String shellProgram = Machine.getShellProgramName();	
-	Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+
+	String resumeName = Config.getString("UserKernel.resume", null);
+	if (resumeName != null) {
+	    Snapshot snapshot = Snapshot.read(resumeName);
+	    Lib.assertTrue(snapshot != null,
+			   "could not read snapshot " + resumeName);
+	    Lib.assertTrue(process.resume(shellProgram, snapshot));
+	}
+	else {
+	    Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+	}
+
+	String checkpointName = Config.getString("UserKernel.checkpoint", null);
+	if (checkpointName != null)
+	    checkpoint(process, checkpointName,
+		       Config.getInteger("UserKernel.checkpointTicks"));
 
 	KThread.currentThread().finish();
     }
 
+    /**
+     * Fork a thread that writes a snapshot of the specified process to a file
+     * in the test directory, at the first timer interrupt after the specified
+     * time at which the process is stopped between two user instructions. A
+     * later run can continue from the snapshot by setting
+     * <tt>UserKernel.resume</tt> to the name of the file.
+     *
+     * @param	process	the process to snapshot.
+     * @param	name	the name of the snapshot file.
+     * @param	time	the earliest time to take the snapshot.
+     */
+    private void checkpoint(final UserProcess process, final String name,
+			    final long time) {
+	new KThread(new Runnable() {
+		public void run() {
+		    Snapshot snapshot = null;
+		    while (snapshot == null) {
+			alarm.waitUntil(Math.max(time - Machine.timer().getTime(),
+						 1));
+
+			boolean intStatus = Machine.interrupt().disable();
+			snapshot = process.checkpoint();
+			Machine.interrupt().restore(intStatus);
+		    }
+
+		    if (snapshot.write(name))
+			System.out.println("checkpoint " + name + " at time "
+					   + snapshot.getTime());
+		    else
+			System.out.println("could not write checkpoint " + name);
+		}
+	    }).setName("checkpoint").fork();
+    }
+
     /**
      * Terminate this kernel. Never returns.
      */
@@ -7,6 +7,7 @@ import java.util.LinkedList;
 import java.util.Arrays;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -58,11 +59,103 @@ public class UserProcess {
 	if (!load(name, args))
 	    return false;
 	
-	new UThread(this).setName(name).fork();
+	thread = new UThread(this);
+	thread.setName(name).fork();
 
 	return true;
     }
 
+    /**
+     * Continue a program saved by <tt>checkpoint()</tt> in an earlier run,
+     * instead of loading it. Allocates the pages the program had, puts the
+     * machine back in the state of the snapshot, and then forks a thread to
+     * continue the program where it was stopped.
+     *
+     * @param	name	the name of the program, for the thread.
+     * @param	snapshot	the snapshot to resume.
+     * @return	<tt>true</tt> if the program was successfully resumed.
+     */
+    public boolean resume(String name, Snapshot snapshot) {
+	byte[] state = snapshot.getKernelState(pageTableState);
+	if (state == null) {
+	    Lib.debug(dbgProcess, "\tsnapshot has no page table");
+	    return false;
+	}
+
+	ByteBuffer buf = ByteBuffer.wrap(state);
+	numPages = buf.getInt();
+	pages = UserKernel.allocatePages(numPages);
+	if (pages == null) {
+	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
+	    return false;
+	}
+
+	pageTable = new TranslationEntry[numPages];
+	for (int i=0; i<numPages; i++) {
+	    int vpn = buf.getInt();
+	    int ppn = buf.getInt();
+	    int flags = buf.get();
+	    pageTable[i] = new TranslationEntry(vpn, ppn, (flags & 1) != 0,
+						(flags & 2) != 0,
+						(flags & 4) != 0,
+						(flags & 8) != 0);
+
+	    // the snapshot's memory is only ours if we got the same pages
+	    if (!pages.contains(ppn)) {
+		Lib.debug(dbgProcess, "\tpage " + ppn + " not available");
+		UserKernel.deallocatePages(pages);
+		return false;
+	    }
+	}
+
+	resumeRegisters = snapshot.getRegisters();
+
+	boolean intStatus = Machine.interrupt().disable();
+	snapshot.restore();
+	Machine.interrupt().restore(intStatus);
+
+	thread = new UThread(this);
+	thread.setName(name).fork();
+
+	return true;
+    }
+
+    /**
+     * Take a snapshot of the machine with this process stopped between two
+     * user instructions, for a later run to continue with <tt>resume()</tt>.
+     * Interrupts must be disabled, and this process's thread must not be the
+     * current thread.
+     *
+     * @return	the snapshot, or <tt>null</tt> if the program has not started,
+     *		is in a system call, or is stopped in a branch delay slot.
+     */
+    public Snapshot checkpoint() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(thread != null && KThread.currentThread() != thread);
+
+	// Processor.run() starts with the instruction after the PC
+	int[] registers = thread.userRegisters;
+	if (!started || inKernel ||
+	    registers[Processor.regNextPC] != registers[Processor.regPC] + 4)
+	    return null;
+
+	Snapshot snapshot = new Snapshot();
+	snapshot.setRegisters(registers);
+
+	ByteBuffer buf = ByteBuffer.allocate(4 + pageTable.length*9);
+	buf.putInt(pageTable.length);
+	for (int i=0; i<pageTable.length; i++) {
+	    TranslationEntry entry = pageTable[i];
+	    buf.putInt(entry.vpn);
+	    buf.putInt(entry.ppn);
+	    buf.put((byte) ((entry.valid ? 1 : 0) | (entry.readOnly ? 2 : 0) |
+			    (entry.used ? 4 : 0) | (entry.dirty ? 8 : 0)));
+	}
+	snapshot.putKernelState(pageTableState, buf.array());
+
+	return snapshot;
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
@@ -145,7 +238,7 @@ public class UserProcess {
         int pageOffset = vaddr % pageSize;
         int bytesLeftToCopy = length;
         int bufferOffset = offset;
-        byte[] memory = Machine.processor().getMemory();
+        ByteBuffer memory = Machine.processor().getMemoryBuffer();
 
         TranslationEntry pageTableEntry = null;
         int bytesToEndOfPage = 0;
@@ -160,7 +253,8 @@ public class UserProcess {
             bytesToEndOfPage = pageSize - pageOffset;
             bytesToCopy = Math.min(bytesToEndOfPage, bytesLeftToCopy);
             physAddr = pageTableEntry.ppn*pageSize + pageOffset;
-            System.arraycopy(memory, physAddr, data, bufferOffset, bytesToCopy);
+            memory.position(physAddr);
+            memory.get(data, bufferOffset, bytesToCopy);
             bytesCopied += bytesToCopy;
             bytesLeftToCopy -= bytesToCopy;
             bufferOffset += bytesToCopy;
@@ -209,7 +303,7 @@ public class UserProcess {
         int pageOffset = vaddr % pageSize;
         int bytesLeftToCopy = length;
         int bufferOffset = offset;
-        byte[] memory = Machine.processor().getMemory();
+        ByteBuffer memory = Machine.processor().getMemoryBuffer();
 
         TranslationEntry pageTableEntry = null;
         int bytesToEndOfPage = 0;
@@ -224,7 +318,8 @@ public class UserProcess {
             bytesToEndOfPage = pageSize - pageOffset;
             bytesToCopy = Math.min(bytesToEndOfPage, bytesLeftToCopy);
             physAddr = pageTableEntry.ppn*pageSize + pageOffset;
-            System.arraycopy(data, bufferOffset, memory, physAddr, bytesToCopy);
+            memory.position(physAddr);
+            memory.put(data, bufferOffset, bytesToCopy);
             bytesCopied += bytesToCopy;
             bytesLeftToCopy -= bytesToCopy;
             bufferOffset += bytesToCopy;
@@ -240,7 +335,7 @@ public class UserProcess {
         System.out.println("----------------------- Low memory index testing -------------------------");
 
         UserProcess u = new UserProcess();
-        byte[] memory = Machine.processor().getMemory();
+        ByteBuffer memory = Machine.processor().getMemoryBuffer();
 
         byte[] data1 = new byte[20];
         for(int i = 0; i < data1.length; i++){
@@ -267,7 +362,7 @@ public class UserProcess {
         System.out.println("Wrote " + bytesWrote + " bytes at virtual address 15, offset 5 from data 2.");
 
         System.out.println("Printing first 30 Bytes of memory:");
-        System.out.println(Arrays.toString(Arrays.copyOf(memory, 30)));
+        System.out.println(Arrays.toString(copyOfMemory(memory, 0, 30)));
 
         byte[] read= new byte[15];
         int bytesRead = u.readVirtualMemory(2,read,0,10);
@@ -278,7 +373,7 @@ public class UserProcess {
         bytesWrote = u.writeVirtualMemory(8, data3, 0, 5);
         System.out.println("Wrote " + bytesWrote + " bytes at virtual address 8, offset 0 from data 3.");
         System.out.println("Printing first 30 Bytes of memory:");
-        System.out.println(Arrays.toString(Arrays.copyOf(memory, 30)));
+        System.out.println(Arrays.toString(copyOfMemory(memory, 0, 30)));
         
 
         bytesRead = u.readVirtualMemory(0,read,0,5);
@@ -295,11 +390,11 @@ public class UserProcess {
 
         System.out.println("----------------- High memory index testing: ------------------");
         System.out.println("Printing Bytes 61990-62020 of memory:");
-        System.out.println(Arrays.toString(Arrays.copyOfRange(memory, 61990, 62020)));
+        System.out.println(Arrays.toString(copyOfMemory(memory, 61990, 62020)));
         bytesWrote = u.writeVirtualMemory(62000, data2 , 0, 10);
         System.out.println("Wrote " + bytesWrote + " bytes at virtual address 62000, offset 0.");
         System.out.println("Printing Bytes 61990-62020 of memory after writing:");
-        System.out.println(Arrays.toString(Arrays.copyOfRange(memory, 61990, 62020)));
+        System.out.println(Arrays.toString(copyOfMemory(memory, 61990, 62020)));
 
         bytesRead = u.readVirtualMemory(62000,read,0,10);
         System.out.println("Read " + bytesRead + " bytes at virtual address 62000.");
@@ -322,6 +417,13 @@ public class UserProcess {
 
     }
 
+    private static byte[] copyOfMemory(ByteBuffer memory, int from, int to){
+        byte[] bytes = new byte[to - from];
+        memory.position(from);
+        memory.get(bytes);
+        return bytes;
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -457,7 +559,9 @@ public class UserProcess {
      */
     protected void unloadSections() {
         UserKernel.deallocatePages(pages);
-        coff.close();
+        // a resumed process has no executable
+        if (coff != null)
+            coff.close();
     }   
     
    
@@ -472,8 +576,18 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	started = true;
+
+	// a resumed process continues with the registers it was stopped with
+	if (resumeRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, resumeRegisters[i]);
+	    resumeRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
-	for (int i=0; i<processor.numUserRegisters; i++)
+	for (int i=0; i<Processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
 
 	// initialize PC and SP according
@@ -695,6 +809,8 @@ public class UserProcess {
     public void handleException(int cause) {
 	Processor processor = Machine.processor();
 
+	inKernel = true;
+
 	switch (cause) {
 	case Processor.exceptionSyscall:
 	    int result = handleSyscall(processor.readRegister(Processor.regV0),
@@ -712,6 +828,8 @@ public class UserProcess {
 		      Processor.exceptionNames[cause]);
 	    Lib.assertNotReached("Unexpected exception");
 	}
+
+	inKernel = false;
     }
     /** fileTable */
     protected OpenFile[] fileTable;
@@ -727,8 +845,20 @@ public class UserProcess {
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
     
+    /** The thread running this process's program. */
+    protected UThread thread;
+
     private int initialPC, initialSP;
     private int argc, argv;
+
+    /** Set once the program's registers have been initialized. */
+    private boolean started = false;
+    /** Set while the program is in a system call or other exception. */
+    private boolean inKernel = false;
+    /** The registers a resumed program continues with. */
+    private int[] resumeRegisters = null;
+
+    private static final String pageTableState = "UserProcess.pageTable";
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';